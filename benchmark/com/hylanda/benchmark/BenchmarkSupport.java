@@ -0,0 +1,20 @@
+package com.hylanda.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {}
+
+    static List<Automaton> compileAll(final List<String> patterns) {
+        final List<Automaton> automata = new ArrayList<>(patterns.size());
+        for (final String pattern: patterns) {
+            automata.add(new RegExp(pattern).toAutomaton());
+        }
+        return automata;
+    }
+}
@@ -0,0 +1,78 @@
+package com.hylanda.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+
+/**
+ * Compilation cost: parsing a pattern set into an automaton, and the
+ * determinize / minimize steps taken on their own.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompileBenchmark {
+
+    @Param({"URL", "LOG", "CJK", "DICTIONARY"})
+    public Workload workload;
+
+    private RegExp regExp;
+
+    // NFA of the union, not determinized.
+    private Automaton nfa;
+
+    // Determinized but not minimized.
+    private Automaton dfa;
+
+    private Automaton nfaCopy;
+    private Automaton dfaCopy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.regExp = new RegExp(this.workload.unionPattern());
+        this.nfa = Automaton.union(BenchmarkSupport.compileAll(this.workload.patterns()));
+        this.dfa = this.nfa.clone();
+        this.dfa.determinize();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyInputs() {
+        // determinize and minimize work in place.
+        this.nfaCopy = this.nfa.clone();
+        this.dfaCopy = this.dfa.clone();
+    }
+
+    @Benchmark
+    public Automaton toAutomaton() {
+        return this.regExp.toAutomaton();
+    }
+
+    @Benchmark
+    public Automaton determinize() {
+        this.nfaCopy.determinize();
+        return this.nfaCopy;
+    }
+
+    @Benchmark
+    public Automaton minimize() {
+        this.dfaCopy.minimize();
+        return this.dfaCopy;
+    }
+}
@@ -0,0 +1,76 @@
+package com.hylanda.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fulmicoton.multiregexp.MultiPattern;
+import com.fulmicoton.multiregexp.MultiPatternMatcher;
+import com.fulmicoton.multiregexp.MultiPatternSearcher;
+
+/**
+ * Multi pattern matching: {@link MultiPatternMatcher#match(CharSequence)}
+ * over every record of the input, and a full search with
+ * {@link MultiPatternSearcher.Cursor#next()}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiPatternBenchmark {
+
+    @Param({"URL", "LOG", "CJK", "DICTIONARY"})
+    public Workload workload;
+
+    @Param({"1024", "65536", "1048576"})
+    public int inputSize;
+
+    private MultiPatternMatcher matcher;
+
+    private MultiPatternSearcher searcher;
+
+    private String input;
+
+    // input split on whitespace and punctuation, as matched by match()
+    private String[] words;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final MultiPattern multiPattern = MultiPattern.of(this.workload.patterns());
+        this.matcher = multiPattern.matcher();
+        this.searcher = multiPattern.searcher();
+        this.input = this.workload.input(this.inputSize);
+        this.words = this.input.split("[\\s，。]+");
+    }
+
+    @Benchmark
+    public void match(final Blackhole blackhole) {
+        for (final String word: this.words) {
+            blackhole.consume(this.matcher.match(word));
+        }
+    }
+
+    @Benchmark
+    public void search(final Blackhole blackhole) {
+        final MultiPatternSearcher.Cursor cursor = this.searcher.search(this.input);
+        while (cursor.next()) {
+            blackhole.consume(cursor.match());
+            blackhole.consume(cursor.start());
+            blackhole.consume(cursor.end());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.hylanda.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dk.brics.automaton.AutomatonMatcher;
+import dk.brics.automaton.LazyRunAutomaton;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+/**
+ * Single pattern matching with {@link RunAutomaton}: full-string acceptance
+ * and unanchored search through {@link AutomatonMatcher}, also with the
+ * lazily determinized {@link LazyRunAutomaton}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RunAutomatonBenchmark {
+
+    @Param({"URL", "LOG", "CJK", "DICTIONARY"})
+    public Workload workload;
+
+    @Param({"1024", "65536", "1048576"})
+    public int inputSize;
+
+    private RunAutomaton automaton;
+
+    private RunAutomaton anyPrefixed;
+
+    private LazyRunAutomaton lazy;
+
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final String pattern = this.workload.unionPattern();
+        this.automaton = new RunAutomaton(new RegExp(pattern).toAutomaton());
+        // run() only accepts full strings, so prefix and suffix the pattern
+        // with .* to make it read the whole input.
+        this.anyPrefixed = new RunAutomaton(new RegExp(".*(" + pattern + ").*").toAutomaton());
+        this.lazy = new LazyRunAutomaton(new RegExp(pattern).toAutomaton(false));
+        this.input = this.workload.input(this.inputSize);
+    }
+
+    @Benchmark
+    public boolean run() {
+        return this.anyPrefixed.run(this.input);
+    }
+
+    @Benchmark
+    public void find(final Blackhole blackhole) {
+        final AutomatonMatcher matcher = this.automaton.newMatcher(this.input);
+        while (matcher.find()) {
+            blackhole.consume(matcher.start());
+            blackhole.consume(matcher.end());
+        }
+    }
+
+    @Benchmark
+    public void lazyFind(final Blackhole blackhole) {
+        final AutomatonMatcher matcher = this.lazy.newMatcher(this.input);
+        while (matcher.find()) {
+            blackhole.consume(matcher.start());
+            blackhole.consume(matcher.end());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.hylanda.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fulmicoton.multiregexp.Lexer;
+import com.fulmicoton.multiregexp.ScanException;
+import com.fulmicoton.multiregexp.Scanner;
+import com.fulmicoton.multiregexp.Token;
+
+/**
+ * Tokenization with {@link Scanner#next()}, both straight from a
+ * <code>Reader</code> and through {@link Lexer#scan(CharSequence)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScannerBenchmark {
+
+    public enum TokenType {
+        NUMBER,
+        WORD,
+        CJK,
+        SPACE,
+        OTHER
+    }
+
+    @Param({"URL", "LOG", "CJK", "DICTIONARY"})
+    public Workload workload;
+
+    @Param({"1024", "65536", "1048576"})
+    public int inputSize;
+
+    private Lexer<TokenType> lexer;
+
+    private String input;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.lexer = new Lexer<TokenType>()
+                .addRule(TokenType.NUMBER, "[0-9]+")
+                .addRule(TokenType.WORD, "[a-zA-Z_]+")
+                .addRule(TokenType.CJK, "[\u4e00-\u9fff]+")
+                .addRule(TokenType.SPACE, "[ \t\r\n]+")
+                .addRule(TokenType.OTHER, ".");
+        // compile outside of the measurement.
+        this.lexer.getAutomaton();
+        this.input = this.workload.input(this.inputSize);
+    }
+
+    @Benchmark
+    public void scannerNext(final Blackhole blackhole) throws IOException, ScanException {
+        final Scanner<TokenType> scanner = this.lexer.scannerFor(new StringReader(this.input));
+        while (scanner.next()) {
+            blackhole.consume(scanner.type);
+            blackhole.consume(scanner.end);
+        }
+    }
+
+    @Benchmark
+    public void lexerScan(final Blackhole blackhole) {
+        for (final Token<TokenType> token: this.lexer.scan(this.input)) {
+            blackhole.consume(token);
+        }
+    }
+}
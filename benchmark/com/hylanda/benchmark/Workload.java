@@ -0,0 +1,192 @@
+package com.hylanda.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Pattern sets and input generators shared by the benchmarks.
+ *
+ * Inputs are generated from a fixed seed so that every run of a benchmark
+ * sees exactly the same characters.
+ */
+public enum Workload {
+
+    URL {
+        @Override
+        List<String> patterns() {
+            return Collections.unmodifiableList(Arrays.asList(
+                    "([a-zA-Z][a-zA-Z0-9]*)://([^ /]+)(/[^ ]*)?",
+                    "[a-z0-9._]+@[a-z0-9]+(\\.[a-z0-9]+)+",
+                    "www\\.[a-z0-9]+\\.(com|cn|net|org)"));
+        }
+
+        @Override
+        void appendRecord(final Random random, final StringBuilder b) {
+            b.append(pick(random, WORDS)).append(' ');
+            if (random.nextInt(4) == 0) {
+                b.append(random.nextBoolean() ? "http" : "ftp").append("://www.")
+                 .append(pick(random, WORDS)).append('.').append(pick(random, TLDS))
+                 .append('/').append(pick(random, WORDS)).append(' ');
+            }
+            if (random.nextInt(8) == 0) {
+                b.append(pick(random, WORDS)).append('@').append(pick(random, WORDS))
+                 .append('.').append(pick(random, TLDS)).append(' ');
+            }
+        }
+    },
+
+    LOG {
+        @Override
+        List<String> patterns() {
+            return Collections.unmodifiableList(Arrays.asList(
+                    "[0-9]{4}-[0-9]{2}-[0-9]{2} [0-9]{2}:[0-9]{2}:[0-9]{2}",
+                    "ERROR|WARN",
+                    "user=[a-z]+",
+                    "[0-9]{1,3}(\\.[0-9]{1,3}){3}",
+                    "took [0-9]+ms"));
+        }
+
+        @Override
+        void appendRecord(final Random random, final StringBuilder b) {
+            b.append("2016-0").append(1 + random.nextInt(9)).append('-').append(10 + random.nextInt(18))
+             .append(' ').append(10 + random.nextInt(13)).append(':').append(10 + random.nextInt(49))
+             .append(':').append(10 + random.nextInt(49)).append(' ')
+             .append(pick(random, LEVELS)).append(' ')
+             .append("user=").append(pick(random, WORDS)).append(' ')
+             .append("ip=").append(random.nextInt(256)).append('.').append(random.nextInt(256))
+             .append('.').append(random.nextInt(256)).append('.').append(random.nextInt(256)).append(' ')
+             .append(pick(random, WORDS)).append(' ').append(pick(random, WORDS))
+             .append(" took ").append(random.nextInt(5000)).append("ms\n");
+        }
+    },
+
+    CJK {
+        @Override
+        List<String> patterns() {
+            return Collections.unmodifiableList(Arrays.asList(
+                    "北京|上海|广州|深圳",
+                    "[\u4e00-\u9fff]{2,4}市",
+                    "第[0-9]+章"));
+        }
+
+        @Override
+        void appendRecord(final Random random, final StringBuilder b) {
+            final int len = 2 + random.nextInt(12);
+            for (int i = 0; i < len; i++) {
+                b.append((char) (0x4e00 + random.nextInt(0x9fff - 0x4e00)));
+            }
+            switch (random.nextInt(6)) {
+            case 0:
+                b.append(pick(random, CITIES)).append('市');
+                break;
+            case 1:
+                b.append('第').append(random.nextInt(100)).append('章');
+                break;
+            default:
+                break;
+            }
+            b.append(random.nextInt(3) == 0 ? "。" : "，");
+        }
+    },
+
+    DICTIONARY {
+        @Override
+        List<String> patterns() {
+            return DICTIONARY_WORDS;
+        }
+
+        @Override
+        void appendRecord(final Random random, final StringBuilder b) {
+            if (random.nextInt(5) == 0) {
+                b.append(pick(random, DICTIONARY_WORDS));
+            }
+            else {
+                b.append(randomWord(random));
+            }
+            b.append(' ');
+        }
+    };
+
+    private static final String[] WORDS = {
+        "alpha", "beta", "gamma", "delta", "sina", "hylanda", "index", "search", "query", "result",
+        "cache", "token", "lexer", "scanner", "matcher", "pattern", "automaton", "state", "login", "logout"
+    };
+
+    private static final String[] TLDS = {"com", "cn", "net", "org", "com.cn"};
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+    private static final String[] CITIES = {"北京", "上海", "广州", "深圳", "杭州"};
+
+    private static final int DICTIONARY_SIZE = 1000;
+
+    private static final List<String> DICTIONARY_WORDS = dictionary(DICTIONARY_SIZE);
+
+    private static final long SEED = 20160101L;
+
+    /**
+     * Patterns exercised by this workload, in priority order.
+     */
+    abstract List<String> patterns();
+
+    abstract void appendRecord(Random random, StringBuilder b);
+
+    /**
+     * Union of all the patterns of this workload, as a single regular expression.
+     */
+    String unionPattern() {
+        final StringBuilder b = new StringBuilder();
+        for (final String pattern: this.patterns()) {
+            if (b.length() > 0) {
+                b.append('|');
+            }
+            b.append('(').append(pattern).append(')');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Generates an input of exactly <code>size</code> chars.
+     */
+    String input(final int size) {
+        final Random random = new Random(SEED);
+        final StringBuilder b = new StringBuilder(size + 256);
+        while (b.length() < size) {
+            this.appendRecord(random, b);
+        }
+        b.setLength(size);
+        return b.toString();
+    }
+
+    private static String pick(final Random random, final String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String pick(final Random random, final List<String> values) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static String randomWord(final Random random) {
+        final int len = 3 + random.nextInt(8);
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static List<String> dictionary(final int size) {
+        final Random random = new Random(SEED ^ 0x5DEECE66DL);
+        final List<String> words = new ArrayList<>(size);
+        while (words.size() < size) {
+            final String word = randomWord(random);
+            if (!words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return Collections.unmodifiableList(words);
+    }
+}
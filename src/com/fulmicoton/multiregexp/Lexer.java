@@ -1,15 +1,21 @@
 package com.fulmicoton.multiregexp;
 
 
+import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 public class Lexer<T extends Enum> {
 
     private final ArrayList<T> types = new ArrayList<>() ;
     private final ArrayList<String> patterns = new ArrayList<>();
     private transient MultiPatternAutomaton automaton = null;
+    // automaton keeping all accept values for the first nbCompiled rules,
+    // extended with the rules added since when the automaton is needed again.
+    private transient MultiPatternAutomaton compiled = null;
+    private transient int nbCompiled = 0;
 
     public Lexer<T> addRule(final T tokenType, final String pattern) {
         this.types.add(tokenType);
@@ -18,9 +24,36 @@ public class Lexer<T extends Enum> {
         return this;
     }
 
+    /**
+     * Adds several rules at once, in order. Rules added together
+     * are compiled together.
+     */
+    public Lexer<T> addRules(final List<T> tokenTypes, final List<String> patterns) {
+        if (tokenTypes.size() != patterns.size()) {
+            throw new IllegalArgumentException("Got " + tokenTypes.size() + " token types for " + patterns.size() + " patterns");
+        }
+        this.types.addAll(tokenTypes);
+        this.patterns.addAll(patterns);
+        this.automaton = null;
+        return this;
+    }
+
+    /**
+     * Returns the automaton for all the rules added so far.
+     *
+     * Rules added since the last call are compiled together, and their
+     * automaton is combined with the one of the previous rules, without
+     * compiling those again.
+     */
     public MultiPatternAutomaton getAutomaton() {
         if (this.automaton == null) {
-            this.automaton = MultiPattern.of(patterns).makeAutomatonWithPrefix("");
+            if (this.compiled == null || this.nbCompiled < this.patterns.size()) {
+                final List<String> newPatterns = this.patterns.subList(this.nbCompiled, this.patterns.size());
+                final MultiPatternAutomaton newAutomaton = MultiPattern.of(newPatterns).makeAutomatonWithPrefix("");
+                this.compiled = (this.compiled == null) ? newAutomaton : this.compiled.extend(newAutomaton);
+                this.nbCompiled = this.patterns.size();
+            }
+            this.automaton = this.compiled.withHighestPriorityOnly();
         }
         return this.automaton;
     }
@@ -29,10 +62,63 @@ public class Lexer<T extends Enum> {
         return new Scanner<T>(this.getAutomaton(), reader, this.types);
     }
 
+    /**
+     * Scans the chars in place, see {@link Scanner#reset(CharSequence)}.
+     */
     public Scanner<T> scannerFor(final CharSequence seq) {
         return new Scanner<T>(this.getAutomaton(), seq, this.types);
     }
 
+    /**
+     * Scans chars[offset .. offset+length-1] in place, see
+     * {@link Scanner#reset(char[], int, int)}.
+     */
+    public Scanner<T> scannerFor(final char[] chars, final int offset, final int length) {
+        return new Scanner<T>(this.getAutomaton(), chars, offset, length, this.types);
+    }
+
+    /**
+     * Scans the chars in place, passing each token to the handler without
+     * allocating anything per token. Offsets are indexes in seq.
+     *
+     * @return the number of tokens.
+     */
+    public int scan(final CharSequence seq, final TokenHandler handler) throws ScanException {
+        try {
+            return this.scannerFor(seq).scan(handler);
+        }
+        catch (final IOException e) {
+            // in-memory input
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #scan(CharSequence, TokenHandler)}, over
+     * chars[offset .. offset+length-1]. Offsets are indexes in chars.
+     */
+    public int scan(final char[] chars, final int offset, final int length, final TokenHandler handler) throws ScanException {
+        try {
+            return this.scannerFor(chars, offset, length).scan(handler);
+        }
+        catch (final IOException e) {
+            // in-memory input
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #scan(CharSequence, TokenHandler)}, reading the reader
+     * in a bounded buffer. Offsets are in chars from the start of the
+     * reader. For a handler that needs the text of some tokens, create the
+     * scanner with {@link #scannerFor(Reader)} and call
+     * {@link Scanner#scan(TokenHandler)} on it, so that the handler can
+     * call {@link Scanner#tokenString()}.
+     */
+    public int scan(final Reader reader, final TokenHandler handler) throws ScanException, IOException {
+        return this.scannerFor(reader).scan(handler);
+    }
+
     public Iterable<Token<T>> scan(final CharSequence seq) {
         final Scanner<T> scanner = this.scannerFor(seq);
         scanner.nextUnchecked();
@@ -0,0 +1,16 @@
+package com.fulmicoton.multiregexp;
+
+/**
+ * Receives the matching lines of {@link MappedFileSearcher}, in file order.
+ */
+public interface LineHandler {
+
+    /**
+     * @param start offset in the file of the first byte of the line
+     * @param end offset of the '\n' ending the line, or the size of the
+     *            file for a last line without one
+     * @param pattern id of the pattern of the first match in the line,
+     *                0 if there is a single pattern
+     */
+    void onLine(long start, long end, int pattern);
+}
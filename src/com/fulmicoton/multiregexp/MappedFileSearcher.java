@@ -0,0 +1,330 @@
+package com.fulmicoton.multiregexp;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.BasicAutomata;
+import dk.brics.automaton.ByteRunAutomaton;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the lines of a file containing a match of a pattern, like grep.
+ *
+ * The file is memory-mapped and split into chunks ending at a line end.
+ * The chunks are scanned in parallel on a ForkJoinPool, directly on the
+ * UTF-8 bytes, by an automaton that accepts as soon as a match ends: the
+ * rest of a matching line is skipped. Nothing is decoded and no String is
+ * created, so the throughput is bound by memory bandwidth and the number
+ * of cores.
+ *
+ * The matching lines are passed to the handler in file order, in the
+ * calling thread. Only a bounded number of chunks is scanned ahead of the
+ * handler, so that the memory used does not depend on the size of the
+ * file.
+ *
+ * Lines are separated by '\n'. The pattern sees a preceding '\r' as part
+ * of the line.
+ *
+ * The results are those of a char-level search of each line, except when
+ * a match would end in the middle of a surrogate pair: such a match has
+ * no UTF-8 equivalent and is not found, see Utf8Operations.toUtf8.
+ */
+public class MappedFileSearcher {
+
+    /** Default size of the chunks scanned by one task, in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 24;
+
+    private static final byte NEWLINE = '\n';
+    // bytes read at once when looking for the end of a line
+    private static final int BOUNDARY_READ_SIZE = 1 << 12;
+
+    // exactly one of the two is not null.
+    private final ByteRunAutomaton runAutomaton;
+    private final MultiPatternAutomaton multiPatternAutomaton;
+
+    private MappedFileSearcher(final ByteRunAutomaton runAutomaton,
+                               final MultiPatternAutomaton multiPatternAutomaton) {
+        this.runAutomaton = runAutomaton;
+        this.multiPatternAutomaton = multiPatternAutomaton;
+    }
+
+    /**
+     * Returns a searcher for the lines containing a match of the given
+     * automaton.
+     */
+    public static MappedFileSearcher of(final Automaton pattern) {
+        final Automaton searchAutomaton = BasicAutomata.makeCharRange('\u0000', '\u00ff')
+                .repeat()
+                .concatenate(pattern.toUtf8());
+        searchAutomaton.minimize();
+        return new MappedFileSearcher(new ByteRunAutomaton(searchAutomaton), null);
+    }
+
+    /**
+     * Returns a searcher for the lines containing a match of any of the
+     * given patterns. The handler receives the id of the highest priority
+     * pattern among those whose match ends first in the line.
+     */
+    public static MappedFileSearcher of(final MultiPattern patterns) {
+        return new MappedFileSearcher(null, patterns.makeUtf8AutomatonWithPrefix(".*", true, null));
+    }
+
+    /**
+     * Searches the given file on a new ForkJoinPool with one thread per
+     * core, with chunks of DEFAULT_CHUNK_SIZE bytes.
+     *
+     * @return the number of matching lines
+     */
+    public long search(final File file, final LineHandler handler) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return search(file, handler, pool, DEFAULT_CHUNK_SIZE);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @param pool runs the scanning tasks
+     * @param chunkSize approximate size of the chunk scanned by one task,
+     *                  in bytes. A chunk extends to the end of its last
+     *                  line.
+     * @return the number of matching lines
+     */
+    public long search(final File file,
+                       final LineHandler handler,
+                       final ForkJoinPool pool,
+                       final int chunkSize) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long size = channel.size();
+            // tasks scanned ahead of the handler, in file order.
+            final ArrayDeque<ChunkTask> window = new ArrayDeque<>();
+            final int maxWindow = 2 * pool.getParallelism();
+            long nbLines = 0;
+            long chunkStart = 0;
+            try {
+                while (chunkStart < size || !window.isEmpty()) {
+                    while (chunkStart < size && window.size() < maxWindow) {
+                        final long chunkEnd = lineStartAfter(channel, Math.min(size, chunkStart + chunkSize), size);
+                        if (chunkEnd - chunkStart > Integer.MAX_VALUE) {
+                            throw new IOException("line longer than 2GB at offset " + chunkStart);
+                        }
+                        final ChunkTask task = new ChunkTask(channel, chunkStart, (int) (chunkEnd - chunkStart));
+                        pool.execute(task);
+                        window.add(task);
+                        chunkStart = chunkEnd;
+                    }
+                    final long[] lines = join(window.remove());
+                    final int nbChunkLines = (int) lines[0];
+                    for (int i = 0; i < nbChunkLines; i++) {
+                        handler.onLine(lines[3 * i + 1], lines[3 * i + 2], (int) lines[3 * i + 3]);
+                    }
+                    nbLines += nbChunkLines;
+                }
+            }
+            finally {
+                for (final ChunkTask task: window) {
+                    task.cancel(false);
+                }
+            }
+            return nbLines;
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static long[] join(final ChunkTask task) throws IOException {
+        try {
+            return task.join();
+        }
+        catch (CancellationException e) {
+            throw new IOException("search cancelled", e);
+        }
+        catch (RuntimeException e) {
+            // join may rethrow a copy of the exception of the task, wrapping it.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the offset of the first line starting at or after the given
+     * offset, or the size of the file if there is none.
+     */
+    private static long lineStartAfter(final FileChannel channel, final long offset, final long size) throws IOException {
+        if (offset == 0 || offset >= size) {
+            return offset;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_READ_SIZE);
+        long position = offset - 1;
+        while (position < size) {
+            buffer.clear();
+            final int nbRead = channel.read(buffer, position);
+            if (nbRead <= 0) {
+                break;
+            }
+            for (int i = 0; i < nbRead; i++) {
+                if (buffer.get(i) == NEWLINE) {
+                    return position + i + 1;
+                }
+            }
+            position += nbRead;
+        }
+        return size;
+    }
+
+    /**
+     * Maps and scans one chunk. Returns the number of matching lines n,
+     * followed by (start, end, pattern) for each of them.
+     */
+    private class ChunkTask extends RecursiveTask<long[]> {
+
+        static final long serialVersionUID = 1;
+
+        private final FileChannel channel;
+        private final long chunkStart;
+        private final int chunkLength;
+
+        ChunkTask(final FileChannel channel, final long chunkStart, final int chunkLength) {
+            this.channel = channel;
+            this.chunkStart = chunkStart;
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        protected long[] compute() {
+            final MappedByteBuffer chunk;
+            try {
+                chunk = this.channel.map(FileChannel.MapMode.READ_ONLY, this.chunkStart, this.chunkLength);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            final LineList lines = new LineList();
+            if (runAutomaton != null) {
+                scan(runAutomaton, chunk, this.chunkStart, lines);
+            }
+            else {
+                scan(multiPatternAutomaton, chunk, this.chunkStart, lines);
+            }
+            return lines.toArray();
+        }
+    }
+
+    private static void scan(final ByteRunAutomaton automaton,
+                             final ByteBuffer chunk,
+                             final long chunkStart,
+                             final LineList lines) {
+        final int length = chunk.limit();
+        final int initialState = automaton.getInitialState();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int pos = lineStart;
+            boolean matched = automaton.isAccept(initialState);
+            int state = initialState;
+            while (!matched && pos < length) {
+                final byte b = chunk.get(pos);
+                if (b == NEWLINE) {
+                    break;
+                }
+                state = automaton.step(state, b);
+                if (state == -1) {
+                    break;
+                }
+                matched = automaton.isAccept(state);
+                pos++;
+            }
+            final int lineEnd = lineEnd(chunk, pos, length);
+            if (matched) {
+                lines.add(chunkStart + lineStart, chunkStart + lineEnd, 0);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private static void scan(final MultiPatternAutomaton automaton,
+                             final ByteBuffer chunk,
+                             final long chunkStart,
+                             final LineList lines) {
+        final int length = chunk.limit();
+        final boolean[] atLeastOneAccept = automaton.atLeastOneAccept;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int pos = lineStart;
+            int state = 0;
+            boolean matched = atLeastOneAccept[state];
+            while (!matched && pos < length) {
+                final byte b = chunk.get(pos);
+                if (b == NEWLINE) {
+                    break;
+                }
+                state = automaton.step(state, b);
+                if (state == -1) {
+                    break;
+                }
+                matched = atLeastOneAccept[state];
+                pos++;
+            }
+            final int lineEnd = lineEnd(chunk, pos, length);
+            if (matched) {
+                lines.add(chunkStart + lineStart, chunkStart + lineEnd, automaton.accept[state][0]);
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Returns the offset of the first '\n' at or after pos, or length.
+     */
+    private static int lineEnd(final ByteBuffer chunk, int pos, final int length) {
+        while (pos < length && chunk.get(pos) != NEWLINE) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Growable list of (start, end, pattern), stored as
+     * [n, start0, end0, pattern0, start1, ...].
+     */
+    private static final class LineList {
+        private long[] values = new long[1 + 3 * 64];
+        private int nbLines = 0;
+
+        void add(final long start, final long end, final int pattern) {
+            final int index = 1 + 3 * this.nbLines;
+            if (index + 3 > this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+            this.values[index] = start;
+            this.values[index + 1] = end;
+            this.values[index + 2] = pattern;
+            this.nbLines++;
+        }
+
+        long[] toArray() {
+            this.values[0] = this.nbLines;
+            return this.values;
+        }
+    }
+}
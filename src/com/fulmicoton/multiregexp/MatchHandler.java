@@ -0,0 +1,17 @@
+package com.fulmicoton.multiregexp;
+
+/**
+ * Receives the matches of {@link MultiPatternSearcher#searchAll(CharSequence, MatchHandler)}.
+ *
+ * Matches are reported by increasing end, and matches with the same end
+ * by increasing pattern id.
+ */
+public interface MatchHandler {
+
+    /**
+     * @param pattern id of the matching pattern
+     * @param start offset of the first char of the match
+     * @param end offset after the last char of the match
+     */
+    void onMatch(int pattern, int start, int end);
+}
@@ -1,18 +1,56 @@
 package com.fulmicoton.multiregexp;
 
 import dk.brics.automaton.Automaton;
+import dk.brics.automaton.BasicAutomata;
+import dk.brics.automaton.CompilationContext;
 import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+import dk.brics.automaton.Utf8Operations;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * Each distinct pattern string is compiled only once per MultiPattern, and
+ * its automaton is shared by all the automata built from it.
+ *
+ * The methods taking an ExecutorService compile the patterns as parallel
+ * tasks on it, with the CompilationContext of the calling thread. The
+ * automata of the patterns are shared by the tasks, so the context must
+ * not allow mutation.
+ *
+ * The utf8 variants of searcher() and matcher() run on the UTF-8 encoding
+ * of the input instead of its chars, so that bytes read from a file or a
+ * socket need not be decoded. They take the input as a ByteSequence or a
+ * ByteBuffer, and all offsets are byte offsets.
+ */
 public class MultiPattern {
 
     private final List<String> patterns;
+    // distinct pattern -> its index in distinctPatterns
+    private final Map<String, Integer> distinctIndex = new LinkedHashMap<>();
+    private final List<String> distinctPatterns;
+    // minimized automaton of each distinct pattern compiled so far
+    private final Map<String, Automaton> compiled = new HashMap<>();
+    // UTF-8 byte automaton of each distinct pattern converted so far
+    private final Map<String, Automaton> compiledUtf8 = new HashMap<>();
 
     private MultiPattern(List<String> patterns) {
         this.patterns = new ArrayList<>(patterns);
+        for (final String pattern: this.patterns) {
+            if (!this.distinctIndex.containsKey(pattern)) {
+                this.distinctIndex.put(pattern, this.distinctIndex.size());
+            }
+        }
+        this.distinctPatterns = new ArrayList<>(this.distinctIndex.keySet());
     }
 
     public static MultiPattern of(List<String> patterns) {
@@ -23,15 +61,79 @@ public class MultiPattern {
         return new MultiPattern(Arrays.asList(patterns));
     }
 
+    /**
+     * The automaton of each pattern is the concatenation of the automaton
+     * of the prefix with the one of the pattern, so that for instance the
+     * prefix ".*" applies to the whole of "a|b".
+     */
     public MultiPatternAutomaton makeAutomatonWithPrefix(String prefix) {
-        final List<Automaton> automata = new ArrayList<>();
-        for (final String ptn: this.patterns) {
-            final String prefixedPattern = prefix + ptn;
-            final Automaton automaton = new RegExp(prefixedPattern).toAutomaton();
-            automaton.minimize();
-            automata.add(automaton);
+        return makeAutomatonWithPrefix(prefix, null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     */
+    public MultiPatternAutomaton makeAutomatonWithPrefix(String prefix, ExecutorService executor) {
+        return makeAutomatonWithPrefix(prefix, false, executor);
+    }
+
+    /**
+     * @param highestPriorityOnly see {@link MultiPatternAutomaton#make(List, boolean)}
+     */
+    synchronized MultiPatternAutomaton makeAutomatonWithPrefix(final String prefix,
+                                                               final boolean highestPriorityOnly,
+                                                               final ExecutorService executor) {
+        return makeAutomatonWithPrefix(prefix, false, highestPriorityOnly, executor);
+    }
+
+    /**
+     * Same as {@link #makeAutomatonWithPrefix(String, boolean, ExecutorService)},
+     * for an automaton running on UTF-8 bytes.
+     */
+    synchronized MultiPatternAutomaton makeUtf8AutomatonWithPrefix(final String prefix,
+                                                                   final boolean highestPriorityOnly,
+                                                                   final ExecutorService executor) {
+        return makeAutomatonWithPrefix(prefix, true, highestPriorityOnly, executor);
+    }
+
+    /**
+     * @param utf8 if true, the automaton runs on UTF-8 bytes. The prefix
+     *             ".*" then skips any bytes, so that invalid UTF-8 in the
+     *             input does not stop a search.
+     */
+    private MultiPatternAutomaton makeAutomatonWithPrefix(final String prefix,
+                                                          final boolean utf8,
+                                                          final boolean highestPriorityOnly,
+                                                          final ExecutorService executor) {
+        final List<Automaton> distinctAutomata = utf8 ? compileUtf8(executor) : compile(executor);
+        final List<Automaton> prefixedAutomata;
+        if (prefix.isEmpty()) {
+            prefixedAutomata = distinctAutomata;
         }
-        return MultiPatternAutomaton.make(automata);
+        else {
+            final List<Callable<Automaton>> tasks = new ArrayList<>();
+            for (final Automaton automaton: distinctAutomata) {
+                tasks.add(new Callable<Automaton>() {
+                    @Override
+                    public Automaton call() {
+                        final Automaton prefixed = prefixAutomaton(prefix, utf8).concatenate(automaton);
+                        prefixed.minimize();
+                        return prefixed;
+                    }
+                });
+            }
+            prefixedAutomata = runAll(tasks, executor);
+        }
+        return MultiPatternAutomaton.make(perPattern(prefixedAutomata), highestPriorityOnly);
+    }
+
+    private static Automaton prefixAutomaton(final String prefix, final boolean utf8) {
+        if (utf8 && prefix.equals(".*")) {
+            return BasicAutomata.makeCharRange('\u0000', '\u00ff').repeat();
+        }
+        final Automaton automaton = new RegExp(prefix).toAutomaton();
+        return utf8 ? Utf8Operations.toUtf8(automaton) : automaton;
     }
 
     /**
@@ -44,17 +146,117 @@ public class MultiPattern {
      * @return A searcher object
      */
     public MultiPatternSearcher searcher() {
-        final MultiPatternAutomaton searcherAutomaton = makeAutomatonWithPrefix(".*");
-        final List<Automaton> indidivualAutomatons = new ArrayList<>();
-        for (final String pattern: this.patterns) {
-            final Automaton automaton = new RegExp(pattern).toAutomaton();
-            automaton.minimize();
-            automaton.determinize();
-            indidivualAutomatons.add(automaton);
-        }
-        return new MultiPatternSearcher(searcherAutomaton, indidivualAutomatons);
+        return searcher(null);
     }
 
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #searcher()
+     */
+    public synchronized MultiPatternSearcher searcher(final ExecutorService executor) {
+        return searcher(false, false, executor);
+    }
+
+    /**
+     * Same as {@link #searcher()}, but the searcher also supports
+     * {@link MultiPatternSearcher#searchAll(CharSequence, MatchHandler)} and
+     * {@link MultiPatternSearcher#matchingPatterns(CharSequence)}.
+     *
+     * These need a second ".*"-prefixed product automaton, which keeps all
+     * the patterns in its accept sets. It has at least as many states as
+     * the one of searcher(), usually more, and it is kept in
+     * memory and stored along with the searcher.
+     */
+    public MultiPatternSearcher searchAllSearcher() {
+        return searchAllSearcher(null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #searchAllSearcher()
+     */
+    public synchronized MultiPatternSearcher searchAllSearcher(final ExecutorService executor) {
+        return searcher(false, true, executor);
+    }
+
+    /**
+     * Same as {@link #searcher()}, for input given as a ByteSequence of
+     * UTF-8 bytes. Offsets of the matches are byte offsets.
+     */
+    public MultiPatternSearcher utf8Searcher() {
+        return utf8Searcher(null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #utf8Searcher()
+     */
+    public synchronized MultiPatternSearcher utf8Searcher(final ExecutorService executor) {
+        return searcher(true, false, executor);
+    }
+
+    /**
+     * Same as {@link #searchAllSearcher()}, for input given as a
+     * ByteSequence of UTF-8 bytes.
+     */
+    public MultiPatternSearcher utf8SearchAllSearcher() {
+        return utf8SearchAllSearcher(null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #utf8SearchAllSearcher()
+     */
+    public synchronized MultiPatternSearcher utf8SearchAllSearcher(final ExecutorService executor) {
+        return searcher(true, true, executor);
+    }
+
+    /**
+     * @param searchAll if true, the searcher also holds the automaton keeping
+     *                  all the patterns in its accept sets.
+     */
+    private MultiPatternSearcher searcher(final boolean utf8, final boolean searchAll, final ExecutorService executor) {
+        final MultiPatternAutomaton allAcceptAutomaton;
+        final MultiPatternAutomaton searcherAutomaton;
+        if (searchAll) {
+            // the automaton keeping the highest priority pattern only is derived from
+            // the one keeping all of them, rather than exploring the product twice.
+            allAcceptAutomaton = makeAutomatonWithPrefix(".*", utf8, false, executor);
+            searcherAutomaton = allAcceptAutomaton.withHighestPriorityOnly();
+        }
+        else {
+            allAcceptAutomaton = null;
+            searcherAutomaton = makeAutomatonWithPrefix(".*", utf8, true, executor);
+        }
+        final List<Callable<RunAutomaton>> individualTasks = new ArrayList<>();
+        final List<Callable<RunAutomaton>> inverseTasks = new ArrayList<>();
+        for (final Automaton automaton: utf8 ? compileUtf8(executor) : compile(executor)) {
+            individualTasks.add(new Callable<RunAutomaton>() {
+                @Override
+                public RunAutomaton call() {
+                    return new RunAutomaton(automaton);
+                }
+            });
+            inverseTasks.add(new Callable<RunAutomaton>() {
+                @Override
+                public RunAutomaton call() {
+                    return new RunAutomaton(MultiPatternSearcher.inverseAutomaton(automaton));
+                }
+            });
+        }
+        // RunAutomaton numbers the states of its automaton,
+        // so the two lists must not be built concurrently.
+        final List<RunAutomaton> individualAutomatons = runAll(individualTasks, executor);
+        final List<RunAutomaton> inverseAutomatons = runAll(inverseTasks, executor);
+        return new MultiPatternSearcher(searcherAutomaton,
+                allAcceptAutomaton,
+                perPattern(individualAutomatons),
+                perPattern(inverseAutomatons));
+    }
 
     /**
      * Equivalent of Pattern.compile, but the result is only valid for full string matching.
@@ -68,8 +270,163 @@ public class MultiPattern {
      * @return A searcher object
      */
     public MultiPatternMatcher matcher() {
-        final MultiPatternAutomaton matcherAutomaton = makeAutomatonWithPrefix("");
+        return matcher(null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #matcher()
+     */
+    public MultiPatternMatcher matcher(final ExecutorService executor) {
+        final MultiPatternAutomaton matcherAutomaton = makeAutomatonWithPrefix("", executor);
         return new MultiPatternMatcher(matcherAutomaton);
     }
 
+    /**
+     * Same as {@link #matcher()}, for input given as UTF-8 bytes, see
+     * {@link MultiPatternMatcher#match(java.nio.ByteBuffer)}.
+     */
+    public MultiPatternMatcher utf8Matcher() {
+        return utf8Matcher(null);
+    }
+
+    /**
+     * @param executor runs the compilation tasks, or null to compile in
+     *                 the calling thread.
+     * @see #utf8Matcher()
+     */
+    public synchronized MultiPatternMatcher utf8Matcher(final ExecutorService executor) {
+        final MultiPatternAutomaton matcherAutomaton = makeAutomatonWithPrefix("", true, false, executor);
+        return new MultiPatternMatcher(matcherAutomaton);
+    }
+
+    /**
+     * Returns the minimized and deterministic automaton of each distinct
+     * pattern, compiling those that were not compiled yet.
+     */
+    private List<Automaton> compile(final ExecutorService executor) {
+        final List<String> missing = new ArrayList<>();
+        final List<Callable<Automaton>> tasks = new ArrayList<>();
+        for (final String pattern: this.distinctPatterns) {
+            if (!this.compiled.containsKey(pattern)) {
+                missing.add(pattern);
+                tasks.add(new Callable<Automaton>() {
+                    @Override
+                    public Automaton call() {
+                        final Automaton automaton = new RegExp(pattern).toAutomaton();
+                        automaton.minimize();
+                        return automaton;
+                    }
+                });
+            }
+        }
+        final List<Automaton> automata = runAll(tasks, executor);
+        for (int i = 0; i < missing.size(); i++) {
+            this.compiled.put(missing.get(i), automata.get(i));
+        }
+        final List<Automaton> distinctAutomata = new ArrayList<>(this.distinctPatterns.size());
+        for (final String pattern: this.distinctPatterns) {
+            distinctAutomata.add(this.compiled.get(pattern));
+        }
+        return distinctAutomata;
+    }
+
+    /**
+     * Returns the UTF-8 byte automaton of each distinct pattern, converting
+     * those that were not converted yet.
+     */
+    private List<Automaton> compileUtf8(final ExecutorService executor) {
+        final List<Automaton> distinctAutomata = compile(executor);
+        final List<String> missing = new ArrayList<>();
+        final List<Callable<Automaton>> tasks = new ArrayList<>();
+        for (int i = 0; i < this.distinctPatterns.size(); i++) {
+            final String pattern = this.distinctPatterns.get(i);
+            final Automaton automaton = distinctAutomata.get(i);
+            if (!this.compiledUtf8.containsKey(pattern)) {
+                missing.add(pattern);
+                tasks.add(new Callable<Automaton>() {
+                    @Override
+                    public Automaton call() {
+                        return Utf8Operations.toUtf8(automaton);
+                    }
+                });
+            }
+        }
+        final List<Automaton> automata = runAll(tasks, executor);
+        for (int i = 0; i < missing.size(); i++) {
+            this.compiledUtf8.put(missing.get(i), automata.get(i));
+        }
+        final List<Automaton> utf8Automata = new ArrayList<>(this.distinctPatterns.size());
+        for (final String pattern: this.distinctPatterns) {
+            utf8Automata.add(this.compiledUtf8.get(pattern));
+        }
+        return utf8Automata;
+    }
+
+    /**
+     * Maps values computed for each distinct pattern to the patterns,
+     * in order.
+     */
+    private <T> List<T> perPattern(final List<T> distinctValues) {
+        final List<T> values = new ArrayList<>(this.patterns.size());
+        for (final String pattern: this.patterns) {
+            values.add(distinctValues.get(this.distinctIndex.get(pattern)));
+        }
+        return values;
+    }
+
+    /**
+     * Runs the given tasks, on the executor if there is one and more
+     * than one task, and returns their results in order. They run with
+     * the CompilationContext of the calling thread.
+     */
+    private static <T> List<T> runAll(final List<Callable<T>> tasks, final ExecutorService executor) {
+        final List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (executor == null || tasks.size() < 2) {
+                for (final Callable<T> task: tasks) {
+                    results.add(task.call());
+                }
+            }
+            else {
+                final CompilationContext context = CompilationContext.current();
+                final List<Callable<T>> contextTasks = new ArrayList<>(tasks.size());
+                for (final Callable<T> task: tasks) {
+                    contextTasks.add(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            return context.call(task);
+                        }
+                    });
+                }
+                for (final Future<T> future: executor.invokeAll(contextTasks)) {
+                    results.add(future.get());
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // tasks only throw unchecked exceptions
+            throw new RuntimeException(e);
+        }
+        return results;
+    }
+
 }
@@ -1,6 +1,12 @@
 package com.fulmicoton.multiregexp;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -8,31 +14,81 @@ import java.util.Map;
 import java.util.Queue;
 
 import dk.brics.automaton.Automaton;
+import dk.brics.automaton.BinaryTables;
 import dk.brics.automaton.DkBricsAutomatonHelper;
 import dk.brics.automaton.State;
 
 public class MultiPatternAutomaton {
 
+    /** Kind of a MultiPatternAutomaton in {@link BinaryTables}. */
+    static final int BINARY_KIND = 2;
+
+    private static final int[] NO_ACCEPT = {};
+    // maximum number of chars leaving the initial state that are searched for directly.
+    private static final int MAX_EXIT_CHARS = 4;
+
     public final int[][] accept;
     final boolean[] atLeastOneAccept;
     private final int stride;
     private final int[] transitions;
+    // used instead of transitions when mapped from a file.
+    private final IntBuffer mappedTransitions;
+    private final char[] points;
     private final int[] alphabet;
+    // first 256 entries of alphabet, for automata over UTF-8 bytes.
+    private final int[] byteAlphabet;
     private final int nbPatterns;
+    private final int nbStatesBeforeMinimization;
+    // chars leading out of the initial state, null if there are more than
+    // MAX_EXIT_CHARS of them or if the initial state accepts.
+    private final char[] exitChars;
+
+    private MultiPatternAutomaton(final int[][] accept,
+                                  final int[] transitions,
+                                  final char[] points,
+                                  final int nbPatterns,
+                                  final int nbStatesBeforeMinimization) {
+        this(accept, transitions, null, points, nbPatterns, nbStatesBeforeMinimization);
+    }
 
     private MultiPatternAutomaton(final int[][] accept,
                                   final int[] transitions,
+                                  final IntBuffer mappedTransitions,
                                   final char[] points,
-                                  final int nbPatterns) {
+                                  final int nbPatterns,
+                                  final int nbStatesBeforeMinimization) {
         this.accept = accept;
         this.transitions = transitions;
+        this.mappedTransitions = mappedTransitions;
+        this.points = points;
         this.alphabet = alphabet(points);
+        this.byteAlphabet = Arrays.copyOf(this.alphabet, 256);
         this.stride = points.length;
         this.atLeastOneAccept = new boolean[accept.length];
         for (int i=0; i<accept.length; i++) {
             this.atLeastOneAccept[i] = this.accept[i].length > 0;
         }
         this.nbPatterns = nbPatterns;
+        this.nbStatesBeforeMinimization = nbStatesBeforeMinimization;
+        this.exitChars = this.atLeastOneAccept[0] ? null : exitChars();
+    }
+
+    private char[] exitChars() {
+        final char[] chars = new char[MAX_EXIT_CHARS];
+        int nbChars = 0;
+        for (int c = 0; c < this.stride; c++) {
+            if (step(0, this.points[c]) == 0) {
+                continue;
+            }
+            final int max = (c + 1 < this.stride) ? this.points[c + 1] - 1 : Character.MAX_VALUE;
+            if (max - this.points[c] >= MAX_EXIT_CHARS - nbChars) {
+                return null;
+            }
+            for (int point = this.points[c]; point <= max; point++) {
+                chars[nbChars++] = (char) point;
+            }
+        }
+        return Arrays.copyOf(chars, nbChars);
     }
 
     private static int[] alphabet(final char[] points) {
@@ -57,6 +113,21 @@ public class MultiPatternAutomaton {
     }
 
     static MultiPatternAutomaton make(final List<Automaton> automata) {
+        return make(automata, false);
+    }
+
+    /**
+     * Builds the product automaton of the given automata, and merges its
+     * equivalent states.
+     *
+     * @param highestPriorityOnly if true, accept[state] only holds the
+     *                            lowest matching pattern id, which is all
+     *                            the Scanner and MultiPatternSearcher look
+     *                            at. States are then merged when they agree
+     *                            on that pattern only, which gives a smaller
+     *                            automaton.
+     */
+    static MultiPatternAutomaton make(final List<Automaton> automata, final boolean highestPriorityOnly) {
         for (final Automaton automaton: automata) {
             automaton.determinize();
         }
@@ -113,18 +184,366 @@ public class MultiPatternAutomaton {
         for (final Map.Entry<MultiState, Integer> entry: multiStateIndex.entrySet()) {
             final Integer stateId = entry.getValue();
             final MultiState multiState = entry.getKey();
-            acceptValues[stateId] = multiState.toAcceptValues();
+            final int[] stateAcceptValues = multiState.toAcceptValues();
+            if (highestPriorityOnly && stateAcceptValues.length > 1) {
+                acceptValues[stateId] = new int[] { stateAcceptValues[0] };
+            }
+            else {
+                acceptValues[stateId] = stateAcceptValues;
+            }
         }
 
-        return new MultiPatternAutomaton(acceptValues, transitions, points, automata.size());
+        return minimize(acceptValues, transitions, points, automata.size());
+    }
+
+    /**
+     * Merges the states of the product that have the same accept values
+     * and go to equivalent states on every char. State 0 remains the
+     * initial state.
+     */
+    private static MultiPatternAutomaton minimize(final int[][] acceptValues,
+                                                  final int[] transitions,
+                                                  final char[] points,
+                                                  final int nbPatterns) {
+        final int nbStates = acceptValues.length;
+        final int stride = points.length;
+        // states are first partitioned by their accept values.
+        final Map<List<Integer>, Integer> acceptClasses = new HashMap<>();
+        final int[] stateClasses = new int[nbStates];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            final List<Integer> key = new ArrayList<>(acceptValues[stateId].length);
+            for (final int patternId: acceptValues[stateId]) {
+                key.add(patternId);
+            }
+            Integer acceptClass = acceptClasses.get(key);
+            if (acceptClass == null) {
+                acceptClass = acceptClasses.size();
+                acceptClasses.put(key, acceptClass);
+            }
+            stateClasses[stateId] = acceptClass;
+        }
+        final int[] stateMapping = DkBricsAutomatonHelper.minimizeTable(transitions, stride, stateClasses, acceptClasses.size());
+        int nbMinStates = 0;
+        for (final int minState: stateMapping) {
+            nbMinStates = Math.max(nbMinStates, minState + 1);
+        }
+        final int[][] minAcceptValues = new int[nbMinStates][];
+        final int[] minTransitions = new int[nbMinStates * stride];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            final int minState = stateMapping[stateId];
+            if (minAcceptValues[minState] != null) {
+                continue;
+            }
+            minAcceptValues[minState] = acceptValues[stateId];
+            for (int pointId=0; pointId<stride; pointId++) {
+                final int dest = transitions[stateId * stride + pointId];
+                minTransitions[minState * stride + pointId] = (dest == -1) ? -1 : stateMapping[dest];
+            }
+        }
+        return new MultiPatternAutomaton(minAcceptValues, minTransitions, points, nbPatterns, nbStates);
+    }
+
+    /**
+     * Returns an automaton that only keeps the highest priority pattern in
+     * accept[state], with its states merged accordingly. See
+     * {@link #make(List, boolean)}.
+     */
+    MultiPatternAutomaton withHighestPriorityOnly() {
+        final int[][] acceptValues = new int[this.accept.length][];
+        for (int stateId=0; stateId<acceptValues.length; stateId++) {
+            final int[] stateAcceptValues = this.accept[stateId];
+            if (stateAcceptValues.length > 1) {
+                acceptValues[stateId] = new int[] { stateAcceptValues[0] };
+            }
+            else {
+                acceptValues[stateId] = stateAcceptValues;
+            }
+        }
+        return minimize(acceptValues, this.transitionTable(), this.points, this.nbPatterns);
+    }
+
+    /**
+     * Returns the automaton for the patterns of this automaton followed by
+     * the patterns of the other automaton, whose pattern ids are shifted by
+     * getNbPatterns().
+     *
+     * Only the product of the two tables is explored, so the patterns of
+     * either side are not compiled again. Both automata must keep all their
+     * accept values (i.e. not be built with highestPriorityOnly).
+     */
+    MultiPatternAutomaton extend(final MultiPatternAutomaton other) {
+        final int[] leftTransitions = this.transitionTable();
+        final int[] rightTransitions = other.transitionTable();
+        final char[] productPoints = mergePoints(this.points, other.points);
+        final int nbPoints = productPoints.length;
+        final int[] leftClasses = new int[nbPoints];
+        final int[] rightClasses = new int[nbPoints];
+        for (int c=0; c<nbPoints; c++) {
+            leftClasses[c] = this.alphabet[productPoints[c] - Character.MIN_VALUE];
+            rightClasses[c] = other.alphabet[productPoints[c] - Character.MIN_VALUE];
+        }
+
+        // a product state is a pair of states, -1 standing for the dead state.
+        final Map<Long, Integer> pairIndex = new HashMap<>();
+        final List<Long> pairs = new ArrayList<>();
+        pairIndex.put(pair(0, 0), 0);
+        pairs.add(pair(0, 0));
+        final List<int[]> transitionList = new ArrayList<>();
+        for (int stateId=0; stateId<pairs.size(); stateId++) {
+            final long visitingPair = pairs.get(stateId);
+            final int left = (int) (visitingPair >> 32);
+            final int right = (int) visitingPair;
+            final int[] curTransitions = new int[nbPoints];
+            for (int c=0; c<nbPoints; c++) {
+                final int destLeft = (left == -1) ? -1 : leftTransitions[left * this.stride + leftClasses[c]];
+                final int destRight = (right == -1) ? -1 : rightTransitions[right * other.stride + rightClasses[c]];
+                if (destLeft == -1 && destRight == -1) {
+                    curTransitions[c] = -1;
+                    continue;
+                }
+                final Long destPair = pair(destLeft, destRight);
+                Integer destStateId = pairIndex.get(destPair);
+                if (destStateId == null) {
+                    destStateId = pairs.size();
+                    pairIndex.put(destPair, destStateId);
+                    pairs.add(destPair);
+                }
+                curTransitions[c] = destStateId;
+            }
+            transitionList.add(curTransitions);
+        }
+
+        final int nbStates = pairs.size();
+        final int[] productTransitions = new int[nbStates * nbPoints];
+        final int[][] acceptValues = new int[nbStates][];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            System.arraycopy(transitionList.get(stateId), 0, productTransitions, stateId * nbPoints, nbPoints);
+            final long visitingPair = pairs.get(stateId);
+            final int left = (int) (visitingPair >> 32);
+            final int right = (int) visitingPair;
+            final int[] leftAccept = (left == -1) ? new int[0] : this.accept[left];
+            final int[] rightAccept = (right == -1) ? new int[0] : other.accept[right];
+            final int[] stateAcceptValues = new int[leftAccept.length + rightAccept.length];
+            System.arraycopy(leftAccept, 0, stateAcceptValues, 0, leftAccept.length);
+            for (int i=0; i<rightAccept.length; i++) {
+                stateAcceptValues[leftAccept.length + i] = this.nbPatterns + rightAccept[i];
+            }
+            acceptValues[stateId] = stateAcceptValues;
+        }
+        return minimize(acceptValues, productTransitions, productPoints, this.nbPatterns + other.nbPatterns);
+    }
+
+    private static long pair(final int left, final int right) {
+        return ((long) left << 32) | (right & 0xffffffffL);
+    }
+
+    private static char[] mergePoints(final char[] left, final char[] right) {
+        final char[] merged = new char[left.length + right.length];
+        int i = 0, j = 0, n = 0;
+        while (i < left.length || j < right.length) {
+            final char c;
+            if (j == right.length || (i < left.length && left[i] <= right[j])) {
+                c = left[i++];
+            }
+            else {
+                c = right[j++];
+            }
+            if (n == 0 || merged[n - 1] != c) {
+                merged[n++] = c;
+            }
+        }
+        return Arrays.copyOf(merged, n);
     }
 
     public int step(final int state, final char c) {
-        return transitions[(state * this.stride) + alphabet[c - Character.MIN_VALUE]];
+        final int index = (state * this.stride) + alphabet[c - Character.MIN_VALUE];
+        if (this.transitions != null) {
+            return this.transitions[index];
+        }
+        return this.mappedTransitions.get(index);
+    }
+
+    /**
+     * Same as step(state, (char) (b &amp; 0xff)), for automata over UTF-8
+     * bytes built by {@link MultiPattern#utf8Matcher()} and
+     * {@link MultiPattern#utf8Searcher()}.
+     */
+    public int step(final int state, final byte b) {
+        final int index = (state * this.stride) + this.byteAlphabet[b & 0xff];
+        if (this.transitions != null) {
+            return this.transitions[index];
+        }
+        return this.mappedTransitions.get(index);
+    }
+
+    /**
+     * Returns the offset of the first char at or after from that leads out
+     * of the initial state, or the length of s if there is none. For the
+     * automata starting with ".*" of the searchers, this is where a match
+     * may start: the input before it is skipped with String.indexOf, which
+     * the JVM vectorizes, instead of being run through the automaton.
+     * Returns from if there are too many such chars, or if the initial
+     * state accepts.
+     */
+    int skipFromInitial(final CharSequence s, final int from) {
+        final char[] exit = this.exitChars;
+        if (exit == null) {
+            return from;
+        }
+        final int length = s.length();
+        if (exit.length == 1 && s instanceof String) {
+            final int pos = ((String) s).indexOf(exit[0], from);
+            return (pos == -1) ? length : pos;
+        }
+        for (int pos = from; pos < length; pos++) {
+            final char c = s.charAt(pos);
+            for (final char exitChar: exit) {
+                if (c == exitChar) {
+                    return pos;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the transition table, copied into the heap if it is mapped
+     * from a file.
+     */
+    private int[] transitionTable() {
+        if (this.transitions != null) {
+            return this.transitions;
+        }
+        final int[] table = new int[this.mappedTransitions.capacity()];
+        this.mappedTransitions.duplicate().get(table);
+        return table;
     }
 
     public int getNbPatterns() {
         return this.nbPatterns;
     }
 
+    public int getNbStates() {
+        return this.accept.length;
+    }
+
+    /**
+     * Number of bytes of the tables of this automaton on the heap: the
+     * transition table, unless it is mapped from a file, the alphabet
+     * tables and the accept values.
+     */
+    public long getTableBytes() {
+        long nbBytes = 2L * this.points.length + 4L * (this.alphabet.length + this.byteAlphabet.length);
+        if (this.transitions != null) {
+            nbBytes += 4L * this.transitions.length;
+        }
+        for (final int[] patterns: this.accept) {
+            nbBytes += 4L * patterns.length + 1;
+        }
+        return nbBytes;
+    }
+
+    /**
+     * Number of states of the product automaton, before equivalent
+     * states were merged.
+     */
+    public int getNbStatesBeforeMinimization() {
+        return this.nbStatesBeforeMinimization;
+    }
+
+    /**
+     * Writes this automaton to the given stream, in the format of
+     * {@link BinaryTables}. The stream is not closed.
+     */
+    public void store(final OutputStream out) throws IOException {
+        final BinaryTables.Writer writer = new BinaryTables.Writer(BINARY_KIND);
+        write(writer);
+        writer.writeTo(out);
+    }
+
+    /**
+     * Reads an automaton written by {@link #store(OutputStream)}, copying
+     * its tables into the heap.
+     */
+    public static MultiPatternAutomaton load(final InputStream in) throws IOException {
+        final BinaryTables.Reader reader = new BinaryTables.Reader(BinaryTables.read(in), BINARY_KIND);
+        final MultiPatternAutomaton automaton = read(reader, false);
+        reader.finish();
+        return automaton;
+    }
+
+    /**
+     * Maps a file written by {@link #store(OutputStream)} into memory.
+     *
+     * The transition table is read in place from the mapped pages, which
+     * are shared by all the processes mapping the file. Only the accept
+     * values are copied into the heap.
+     */
+    public static MultiPatternAutomaton map(final File file) throws IOException {
+        final BinaryTables.Reader reader = new BinaryTables.Reader(BinaryTables.map(file), BINARY_KIND);
+        final MultiPatternAutomaton automaton = read(reader, true);
+        reader.finish();
+        return automaton;
+    }
+
+    void write(final BinaryTables.Writer writer) {
+        final int nbStates = this.accept.length;
+        writer.writeInt(this.nbPatterns);
+        writer.writeInt(this.nbStatesBeforeMinimization);
+        writer.writeChars(this.points);
+        // accept values of state i are acceptValues[acceptOffsets[i] .. acceptOffsets[i+1]-1]
+        final int[] acceptOffsets = new int[nbStates + 1];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            acceptOffsets[stateId + 1] = acceptOffsets[stateId] + this.accept[stateId].length;
+        }
+        final int[] acceptValues = new int[acceptOffsets[nbStates]];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            System.arraycopy(this.accept[stateId], 0, acceptValues, acceptOffsets[stateId], this.accept[stateId].length);
+        }
+        writer.writeInts(acceptOffsets);
+        writer.writeInts(acceptValues);
+        if (this.transitions != null) {
+            writer.writeInts(this.transitions);
+        }
+        else {
+            writer.writeInts(this.mappedTransitions);
+        }
+    }
+
+    static MultiPatternAutomaton read(final BinaryTables.Reader reader, final boolean inPlace) throws IOException {
+        final int nbPatterns = reader.readInt();
+        final int nbStatesBeforeMinimization = reader.readInt();
+        final char[] points = reader.readChars();
+        final int[] acceptOffsets = reader.readInts();
+        final int[] acceptValues = reader.readInts();
+        final int[] transitions;
+        final IntBuffer mappedTransitions;
+        final int nbTransitions;
+        if (inPlace) {
+            transitions = null;
+            mappedTransitions = reader.readIntBuffer();
+            nbTransitions = mappedTransitions.capacity();
+        }
+        else {
+            transitions = reader.readInts();
+            mappedTransitions = null;
+            nbTransitions = transitions.length;
+        }
+        final int nbStates = acceptOffsets.length - 1;
+        if (nbStates < 1 || points.length == 0 || nbTransitions != nbStates * points.length
+                || acceptOffsets[0] != 0 || acceptOffsets[nbStates] != acceptValues.length) {
+            throw new IOException("corrupt file");
+        }
+        final int[][] accept = new int[nbStates][];
+        for (int stateId=0; stateId<nbStates; stateId++) {
+            if (acceptOffsets[stateId + 1] < acceptOffsets[stateId]) {
+                throw new IOException("corrupt file");
+            }
+            accept[stateId] = (acceptOffsets[stateId + 1] == acceptOffsets[stateId])
+                    ? NO_ACCEPT
+                    : Arrays.copyOfRange(acceptValues, acceptOffsets[stateId], acceptOffsets[stateId + 1]);
+        }
+        return new MultiPatternAutomaton(accept, transitions, mappedTransitions, points, nbPatterns, nbStatesBeforeMinimization);
+    }
+
 }
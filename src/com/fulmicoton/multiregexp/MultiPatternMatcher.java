@@ -1,5 +1,10 @@
 package com.fulmicoton.multiregexp;
 
+import dk.brics.automaton.ParallelRun;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
 public class MultiPatternMatcher {
 
     private final int[] NO_MATCH = {};
@@ -21,4 +26,49 @@ public class MultiPatternMatcher {
         return this.automaton.accept[p];
     }
 
+    /**
+     * Same as match(s), running chunks of the input in parallel on the
+     * given pool, see {@link ParallelRun}.
+     */
+    public int[] match(final CharSequence s, final ForkJoinPool pool) {
+        final int p = new ParallelRun() {
+            @Override
+            protected int getSize() {
+                return automaton.getNbStates();
+            }
+
+            @Override
+            protected int step(final int state, final char c) {
+                return automaton.step(state, c);
+            }
+
+            @Override
+            protected boolean isAccept(final int state) {
+                return automaton.atLeastOneAccept[state];
+            }
+        }.run(s, 0, pool);
+        if (p == -1) {
+            return NO_MATCH;
+        }
+        return this.automaton.accept[p];
+    }
+
+    /**
+     * Matches the bytes of the given buffer from its position to its
+     * limit, for a matcher built by {@link MultiPattern#utf8Matcher()}.
+     * The position is not changed. The buffer may be on the heap, direct
+     * or memory-mapped.
+     */
+    public int[] match(ByteBuffer b) {
+        int p = 0;
+        final int l = b.limit();
+        for (int i = b.position(); i < l; i++) {
+            p = this.automaton.step(p, b.get(i));
+            if (p == -1) {
+                return NO_MATCH;
+            }
+        }
+        return this.automaton.accept[p];
+    }
+
 }
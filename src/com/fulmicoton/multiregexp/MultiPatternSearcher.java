@@ -1,34 +1,121 @@
 package com.fulmicoton.multiregexp;
 
 import dk.brics.automaton.Automaton;
+import dk.brics.automaton.BinaryTables;
+import dk.brics.automaton.DkBricsAutomatonHelper;
 import dk.brics.automaton.RunAutomaton;
 import dk.brics.automaton.State;
 import dk.brics.automaton.StatePair;
 import dk.brics.automaton.Transition;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Searches for the first occurrence of any of several patterns, see
+ * {@link MultiPattern#searcher()}.
+ *
+ * Only searchers built by {@link MultiPattern#searchAllSearcher()} support
+ * {@link #searchAll(CharSequence, MatchHandler)} and
+ * {@link #matchingPatterns(CharSequence)}: these run a second product
+ * automaton keeping all the patterns in its accept sets, which has at
+ * least as many states as the first one, usually more.
+ */
 public class MultiPatternSearcher {
 
+    /** Kind of a MultiPatternSearcher in {@link BinaryTables}. */
+    static final int BINARY_KIND = 3;
+
     private final MultiPatternAutomaton automaton;
+    // same language as automaton, but keeps every pattern in accept[state].
+    // null unless built for searchAll.
+    private final MultiPatternAutomaton allAcceptAutomaton;
     private final List<RunAutomaton> individualAutomatons;
     private final List<RunAutomaton> inverseAutomatons;
+    // length of the matches of each pattern, or -1 if they do not all have the same length.
+    private final int[] matchLengths;
+    // number of patterns appearing in the accept sets of allAcceptAutomaton.
+    private final int nbMatchablePatterns;
 
     MultiPatternSearcher(final MultiPatternAutomaton automaton,
-                         final List<Automaton> individualAutomatons) {
+                         final MultiPatternAutomaton allAcceptAutomaton,
+                         final List<RunAutomaton> individualAutomatons,
+                         final List<RunAutomaton> inverseAutomatons) {
         this.automaton = automaton;
-        this.individualAutomatons = new ArrayList<>();
-        for (final Automaton individualAutomaton: individualAutomatons) {
-            this.individualAutomatons.add(new RunAutomaton(individualAutomaton));
+        this.allAcceptAutomaton = allAcceptAutomaton;
+        this.individualAutomatons = individualAutomatons;
+        this.inverseAutomatons = inverseAutomatons;
+        this.matchLengths = new int[individualAutomatons.size()];
+        final Map<RunAutomaton, Integer> lengths = new IdentityHashMap<>();
+        for (int i=0; i<this.matchLengths.length; i++) {
+            final RunAutomaton individualAutomaton = individualAutomatons.get(i);
+            Integer length = lengths.get(individualAutomaton);
+            if (length == null) {
+                length = matchLength(individualAutomaton);
+                lengths.put(individualAutomaton, length);
+            }
+            this.matchLengths[i] = length;
+        }
+        final BitSet matchable = new BitSet(this.matchLengths.length);
+        if (allAcceptAutomaton != null) {
+            for (final int[] patterns: allAcceptAutomaton.accept) {
+                for (final int pattern: patterns) {
+                    matchable.set(pattern);
+                }
+            }
         }
-        this.inverseAutomatons = new ArrayList<>(this.individualAutomatons.size());
-        for (final Automaton individualAutomaton: individualAutomatons) {
-            final Automaton inverseAutomaton = inverseAutomaton(individualAutomaton);
-            this.inverseAutomatons.add(new RunAutomaton(inverseAutomaton));
+        this.nbMatchablePatterns = matchable.cardinality();
+    }
+
+    /**
+     * Returns the length of the strings accepted by the given automaton if
+     * they all have the same length, as for a literal, and -1 otherwise.
+     *
+     * The automaton has no dead states, so this is the case iff every
+     * state is at the same distance from the initial state along every
+     * path, and all accept states are at the same distance.
+     */
+    static int matchLength(final RunAutomaton automaton) {
+        final char[] points = automaton.getCharIntervals();
+        final int[] depth = new int[automaton.getSize()];
+        Arrays.fill(depth, -1);
+        final int[] queue = new int[depth.length];
+        int queueEnd = 0;
+        queue[queueEnd++] = automaton.getInitialState();
+        depth[automaton.getInitialState()] = 0;
+        int length = -1;
+        for (int queueStart=0; queueStart<queueEnd; queueStart++) {
+            final int state = queue[queueStart];
+            if (automaton.isAccept(state)) {
+                if (length != -1 && length != depth[state]) {
+                    return -1;
+                }
+                length = depth[state];
+            }
+            for (final char point: points) {
+                final int dest = automaton.step(state, point);
+                if (dest == -1) {
+                    continue;
+                }
+                if (depth[dest] == -1) {
+                    depth[dest] = depth[state] + 1;
+                    queue[queueEnd++] = dest;
+                }
+                else if (depth[dest] != depth[state] + 1) {
+                    return -1;
+                }
+            }
         }
+        return length;
     }
 
     static Automaton inverseAutomaton(final Automaton automaton) {
@@ -57,6 +144,127 @@ public class MultiPatternSearcher {
         return inverseAutomaton;
     }
 
+    /**
+     * Number of bytes of the tables of the automata of this searcher on the
+     * heap. Automata shared by several patterns are counted once.
+     */
+    public long getTableBytes() {
+        long nbBytes = this.automaton.getTableBytes();
+        if (this.allAcceptAutomaton != null) {
+            nbBytes += this.allAcceptAutomaton.getTableBytes();
+        }
+        final Map<RunAutomaton, Boolean> counted = new IdentityHashMap<>();
+        for (final List<RunAutomaton> automata: Arrays.asList(this.individualAutomatons, this.inverseAutomatons)) {
+            for (final RunAutomaton runAutomaton: automata) {
+                if (counted.put(runAutomaton, Boolean.TRUE) == null) {
+                    nbBytes += runAutomaton.getTableBytes();
+                }
+            }
+        }
+        return nbBytes;
+    }
+
+    /**
+     * Writes this searcher to the given stream, in the format of
+     * {@link BinaryTables}: its automaton, a flag telling whether the
+     * automaton of searchAll follows, then the individual and inverse
+     * automata. Automata shared by several patterns are written once. The
+     * stream is not closed.
+     */
+    public void store(final OutputStream out) throws IOException {
+        final BinaryTables.Writer writer = new BinaryTables.Writer(BINARY_KIND);
+        this.automaton.write(writer);
+        writer.writeInt(this.allAcceptAutomaton != null ? 1 : 0);
+        if (this.allAcceptAutomaton != null) {
+            this.allAcceptAutomaton.write(writer);
+        }
+        writeRunAutomata(writer, this.individualAutomatons);
+        writeRunAutomata(writer, this.inverseAutomatons);
+        writer.writeTo(out);
+    }
+
+    /**
+     * Reads a searcher written by {@link #store(OutputStream)}, copying its
+     * tables into the heap.
+     */
+    public static MultiPatternSearcher load(final InputStream in) throws IOException {
+        return read(new BinaryTables.Reader(BinaryTables.read(in), BINARY_KIND), false);
+    }
+
+    /**
+     * Maps a file written by {@link #store(OutputStream)} into memory. All
+     * transition tables are read in place from the mapped pages, see
+     * {@link MultiPatternAutomaton#map(File)}.
+     */
+    public static MultiPatternSearcher map(final File file) throws IOException {
+        return read(new BinaryTables.Reader(BinaryTables.map(file), BINARY_KIND), true);
+    }
+
+    private static MultiPatternSearcher read(final BinaryTables.Reader reader, final boolean inPlace) throws IOException {
+        final MultiPatternAutomaton automaton = MultiPatternAutomaton.read(reader, inPlace);
+        final int hasAllAccept = reader.readInt();
+        if (hasAllAccept != 0 && hasAllAccept != 1) {
+            throw new IOException("corrupt file");
+        }
+        final MultiPatternAutomaton allAcceptAutomaton = (hasAllAccept == 1)
+                ? MultiPatternAutomaton.read(reader, inPlace)
+                : null;
+        // the alphabet tables take 256KB each, most patterns have the same char intervals.
+        final Map<String, int[]> classmaps = new HashMap<>();
+        final List<RunAutomaton> individualAutomatons = readRunAutomata(reader, inPlace, classmaps);
+        final List<RunAutomaton> inverseAutomatons = readRunAutomata(reader, inPlace, classmaps);
+        reader.finish();
+        if (individualAutomatons.size() != automaton.getNbPatterns()
+                || inverseAutomatons.size() != automaton.getNbPatterns()
+                || (allAcceptAutomaton != null && allAcceptAutomaton.getNbPatterns() != automaton.getNbPatterns())) {
+            throw new IOException("corrupt file");
+        }
+        return new MultiPatternSearcher(automaton, allAcceptAutomaton, individualAutomatons, inverseAutomatons);
+    }
+
+    private static void writeRunAutomata(final BinaryTables.Writer writer, final List<RunAutomaton> runAutomata) {
+        final Map<RunAutomaton, Integer> distinctIndex = new IdentityHashMap<>();
+        final List<RunAutomaton> distinct = new ArrayList<>();
+        final int[] indexes = new int[runAutomata.size()];
+        for (int i=0; i<indexes.length; i++) {
+            final RunAutomaton runAutomaton = runAutomata.get(i);
+            Integer index = distinctIndex.get(runAutomaton);
+            if (index == null) {
+                index = distinct.size();
+                distinctIndex.put(runAutomaton, index);
+                distinct.add(runAutomaton);
+            }
+            indexes[i] = index;
+        }
+        writer.writeInts(indexes);
+        writer.writeInt(distinct.size());
+        for (final RunAutomaton runAutomaton: distinct) {
+            DkBricsAutomatonHelper.writeRunAutomaton(writer, runAutomaton);
+        }
+    }
+
+    private static List<RunAutomaton> readRunAutomata(final BinaryTables.Reader reader,
+                                                      final boolean inPlace,
+                                                      final Map<String, int[]> classmaps) throws IOException {
+        final int[] indexes = reader.readInts();
+        final int nbDistinct = reader.readInt();
+        if (indexes == null || nbDistinct < 0) {
+            throw new IOException("corrupt file");
+        }
+        final List<RunAutomaton> distinct = new ArrayList<>();
+        for (int i=0; i<nbDistinct; i++) {
+            distinct.add(DkBricsAutomatonHelper.readRunAutomaton(reader, inPlace, classmaps));
+        }
+        final List<RunAutomaton> runAutomata = new ArrayList<>(indexes.length);
+        for (final int index: indexes) {
+            if (index < 0 || index >= nbDistinct) {
+                throw new IOException("corrupt file");
+            }
+            runAutomata.add(distinct.get(index));
+        }
+        return runAutomata;
+    }
+
     public Cursor search(CharSequence s) {
         return search(s, 0);
     }
@@ -65,6 +273,209 @@ public class MultiPatternSearcher {
         return new Cursor(s, position);
     }
 
+    /**
+     * Reports every match of every pattern, overlapping ones included, in
+     * the style of Aho-Corasick: for each offset and each pattern with a
+     * match ending there, the handler receives the match with the leftmost
+     * start.
+     *
+     * The input is read once forward, collecting the (pattern, end) pairs
+     * from the accept sets of the automaton. Their starts are then
+     * recovered in batch: by subtracting the length of the pattern when
+     * all its matches have the same length, as for literals, and otherwise
+     * by one more forward pass of the automaton of the pattern, up to its
+     * last match (see leftmostStarts). The cost is linear in the length of
+     * the input plus the number of matches, plus, for each pattern of
+     * variable length that matches, the length of the input times the
+     * number of states of its automaton.
+     *
+     * @return the number of matches
+     * @throws IllegalStateException if this searcher was not built by
+     *         {@link MultiPattern#searchAllSearcher()}
+     */
+    public int searchAll(final CharSequence s, final MatchHandler handler) {
+        final MultiPatternAutomaton automaton = allAcceptAutomaton();
+        // (pattern, end) of the matches found, then (pattern, end, start).
+        int[] found = new int[32];
+        int nbFound = 0;
+        final int seqLength = s.length();
+        int state = 0;
+        for (int pos = 0; pos <= seqLength; pos++) {
+            if (pos > 0) {
+                state = automaton.step(state, s.charAt(pos - 1));
+            }
+            if (automaton.atLeastOneAccept[state]) {
+                final int[] patterns = automaton.accept[state];
+                if (found.length < (nbFound + patterns.length) * 2) {
+                    found = Arrays.copyOf(found, Math.max(found.length * 2, (nbFound + patterns.length) * 2));
+                }
+                for (final int pattern: patterns) {
+                    found[nbFound * 2] = pattern;
+                    found[nbFound * 2 + 1] = pos;
+                    nbFound++;
+                }
+            }
+            if (state == 0) {
+                pos = automaton.skipFromInitial(s, pos);
+            }
+        }
+        final int[] starts = new int[nbFound];
+        final BitSet variableLength = new BitSet(this.matchLengths.length);
+        for (int i = 0; i < nbFound; i++) {
+            final int pattern = found[i * 2];
+            if (this.matchLengths[pattern] >= 0) {
+                starts[i] = found[i * 2 + 1] - this.matchLengths[pattern];
+            }
+            else {
+                variableLength.set(pattern);
+            }
+        }
+        for (int pattern = variableLength.nextSetBit(0); pattern >= 0; pattern = variableLength.nextSetBit(pattern + 1)) {
+            leftmostStarts(s, pattern, found, nbFound, starts);
+        }
+        for (int i = 0; i < nbFound; i++) {
+            handler.onMatch(found[i * 2], starts[i], found[i * 2 + 1]);
+        }
+        return nbFound;
+    }
+
+    /**
+     * Returns the set of the ids of the patterns occurring anywhere in the
+     * given string.
+     *
+     * @see #matchingPatterns(CharSequence, BitSet)
+     */
+    public BitSet matchingPatterns(final CharSequence s) {
+        final BitSet result = new BitSet(this.matchLengths.length);
+        matchingPatterns(s, result);
+        return result;
+    }
+
+    /**
+     * Sets in result the ids of the patterns occurring anywhere in the
+     * given string, clearing it first, so that the same BitSet can be
+     * reused for many strings.
+     *
+     * Only the ".*"-prefixed automaton runs, once, without looking for
+     * the bounds of the matches. It stops as soon as no new pattern can be
+     * found. Because of the ".*" prefix, every pattern whose language is
+     * not empty can still be accepted from every state, so this is when
+     * all of them have been seen.
+     *
+     * @return the number of patterns found
+     * @throws IllegalStateException if this searcher was not built by
+     *         {@link MultiPattern#searchAllSearcher()}
+     */
+    public int matchingPatterns(final CharSequence s, final BitSet result) {
+        final MultiPatternAutomaton automaton = allAcceptAutomaton();
+        result.clear();
+        final int nbMatchable = this.nbMatchablePatterns;
+        int nbFound = 0;
+        int state = 0;
+        final int seqLength = s.length();
+        for (int pos = 0; pos <= seqLength && nbFound < nbMatchable; pos++) {
+            if (pos > 0) {
+                state = automaton.step(state, s.charAt(pos - 1));
+            }
+            if (automaton.atLeastOneAccept[state]) {
+                for (final int pattern: automaton.accept[state]) {
+                    if (!result.get(pattern)) {
+                        result.set(pattern);
+                        nbFound++;
+                    }
+                }
+            }
+            if (state == 0) {
+                pos = automaton.skipFromInitial(s, pos);
+            }
+        }
+        return nbFound;
+    }
+
+    private MultiPatternAutomaton allAcceptAutomaton() {
+        if (this.allAcceptAutomaton == null) {
+            throw new IllegalStateException("searcher built without searchAll support, see MultiPattern.searchAllSearcher()");
+        }
+        return this.allAcceptAutomaton;
+    }
+
+    /**
+     * Sets starts[i] to the leftmost start of the match i of found, for the
+     * matches of the given pattern, in one forward pass of the automaton of
+     * the pattern.
+     *
+     * A run starts at every offset. Runs that reach the same state have the
+     * same future, so they are merged, keeping the earliest start: there is
+     * at most one run per state. The leftmost start of a match ending at an
+     * offset is the earliest start among the runs in an accept state there.
+     * The cost is the length of the input up to the last match times the
+     * number of states.
+     */
+    private void leftmostStarts(final CharSequence s,
+                                final int pattern,
+                                final int[] found,
+                                final int nbFound,
+                                final int[] starts) {
+        final RunAutomaton forwardAutomaton = this.individualAutomatons.get(pattern);
+        final int initial = forwardAutomaton.getInitialState();
+        // earliest start of the run in each state, -1 if there is none.
+        int[] earliest = new int[forwardAutomaton.getSize()];
+        int[] nextEarliest = new int[earliest.length];
+        Arrays.fill(earliest, -1);
+        Arrays.fill(nextEarliest, -1);
+        int[] active = new int[earliest.length];
+        int[] nextActive = new int[earliest.length];
+        active[0] = initial;
+        earliest[initial] = 0;
+        int nbActive = 1;
+        int pos = 0;
+        for (int i = 0; i < nbFound; i++) {
+            if (found[i * 2] != pattern) {
+                continue;
+            }
+            final int end = found[i * 2 + 1];
+            for (; pos < end; pos++) {
+                final char c = s.charAt(pos);
+                int nbNext = 0;
+                for (int j = 0; j < nbActive; j++) {
+                    final int state = active[j];
+                    final int start = earliest[state];
+                    earliest[state] = -1;
+                    final int dest = forwardAutomaton.step(state, c);
+                    if (dest == -1) {
+                        continue;
+                    }
+                    if (nextEarliest[dest] == -1) {
+                        nextEarliest[dest] = start;
+                        nextActive[nbNext++] = dest;
+                    }
+                    else if (start < nextEarliest[dest]) {
+                        nextEarliest[dest] = start;
+                    }
+                }
+                if (nextEarliest[initial] == -1) {
+                    nextEarliest[initial] = pos + 1;
+                    nextActive[nbNext++] = initial;
+                }
+                final int[] swapEarliest = earliest;
+                earliest = nextEarliest;
+                nextEarliest = swapEarliest;
+                final int[] swapActive = active;
+                active = nextActive;
+                nextActive = swapActive;
+                nbActive = nbNext;
+            }
+            int start = -1;
+            for (int j = 0; j < nbActive; j++) {
+                final int state = active[j];
+                if (forwardAutomaton.isAccept(state) && (start == -1 || earliest[state] < start)) {
+                    start = earliest[state];
+                }
+            }
+            starts[i] = start;
+        }
+    }
+
     public class Cursor {
         private final CharSequence seq;
         private int matchingPattern = -1;
@@ -120,6 +531,12 @@ public class MultiPatternSearcher {
             { // first find a match and "choose the pattern".
                 int state = 0;
                 for (int pos=this.end; pos < seqLength; pos++) {
+                    if (state == 0) {
+                        pos = automaton.skipFromInitial(this.seq, pos);
+                        if (pos == seqLength) {
+                            break;
+                        }
+                    }
                     final char c = this.seq.charAt(pos);
                     state = automaton.step(state, c);
                     if (automaton.atLeastOneAccept[state]) {
@@ -0,0 +1,303 @@
+package com.fulmicoton.multiregexp;
+
+import dk.brics.automaton.AutomatonProvider;
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Thread-safe cache of compiled patterns, bounded by the size of their
+ * tables.
+ *
+ * A RunAutomaton is keyed by its pattern, its syntax flags and its
+ * automaton provider, compared by identity. A MultiPatternSearcher is
+ * keyed by its list of patterns.
+ *
+ * Compilation runs in the calling thread, outside of any lock, so that
+ * distinct keys compile concurrently. Threads asking for a key that is
+ * being compiled wait for that compilation instead of starting their own.
+ * A compilation that fails is not cached: its exception is thrown to all
+ * the threads waiting for it, and the next request compiles again.
+ *
+ * Once the total number of bytes of the tables of the cached automata
+ * exceeds the maximum weight, the least recently used entries are
+ * evicted. An entry heavier than the maximum weight is returned but not
+ * kept.
+ */
+public class PatternCache {
+
+    // the flags of new RegExp(String).
+    private static final int DEFAULT_FLAGS = ~RegExp.AUTOMATON & ~RegExp.INTERVAL;
+
+    private final long maxWeight;
+    // in access order, so that the first entry is the least recently used.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long compileNanos = 0;
+
+    /**
+     * @param maxWeight maximum number of bytes of the tables of the
+     *                  cached automata, see
+     *                  {@link RunAutomaton#getTableBytes()} and
+     *                  {@link MultiPatternSearcher#getTableBytes()}.
+     */
+    public PatternCache(final long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight must not be negative");
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the RunAutomaton of new RegExp(regexp).toRunAutomaton().
+     */
+    public RunAutomaton runAutomaton(final String regexp) {
+        return runAutomaton(regexp, DEFAULT_FLAGS, null);
+    }
+
+    /**
+     * Returns the RunAutomaton of
+     * new RegExp(regexp, flags).toRunAutomaton(provider).
+     *
+     * @param provider provider of the named automata, or null for the
+     *                 default one.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    public RunAutomaton runAutomaton(final String regexp,
+                                     final int flags,
+                                     final AutomatonProvider provider) {
+        final Key key = new Key(Kind.RUN_AUTOMATON, Arrays.asList(regexp), flags, provider);
+        return (RunAutomaton) get(key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return new RegExp(regexp, flags).toRunAutomaton(provider);
+            }
+        });
+    }
+
+    /**
+     * Returns the searcher of MultiPattern.of(patterns).searcher().
+     */
+    public MultiPatternSearcher searcher(final String... patterns) {
+        return searcher(Arrays.asList(patterns));
+    }
+
+    /**
+     * Returns the searcher of MultiPattern.of(patterns).searcher().
+     */
+    public MultiPatternSearcher searcher(final List<String> patterns) {
+        final Key key = new Key(Kind.SEARCHER, new ArrayList<>(patterns), 0, null);
+        return (MultiPatternSearcher) get(key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return MultiPattern.of(key.patterns).searcher();
+            }
+        });
+    }
+
+    private Object get(final Key key, final Callable<Object> compiler) {
+        final Entry entry;
+        final boolean compiling;
+        synchronized (this) {
+            final Entry cached = this.entries.get(key);
+            if (cached != null) {
+                this.hitCount++;
+                entry = cached;
+                compiling = false;
+            }
+            else {
+                this.missCount++;
+                entry = new Entry(new FutureTask<>(compiler));
+                this.entries.put(key, entry);
+                compiling = true;
+            }
+        }
+        if (compiling) {
+            final long start = System.nanoTime();
+            entry.task.run();
+            final long elapsed = System.nanoTime() - start;
+            Object value = null;
+            try {
+                value = entry.task.get();
+            }
+            catch (ExecutionException | InterruptedException e) {
+                // thrown to the caller below.
+            }
+            synchronized (this) {
+                this.compileNanos += elapsed;
+                if (this.entries.get(key) == entry) {
+                    final long valueWeight = (value == null) ? 0 : weigh(value);
+                    if (value == null || valueWeight > this.maxWeight) {
+                        this.entries.remove(key);
+                    }
+                    else {
+                        entry.weight = valueWeight;
+                        this.weight += valueWeight;
+                        evict();
+                    }
+                }
+            }
+        }
+        return await(entry.task);
+    }
+
+    private static long weigh(final Object value) {
+        if (value instanceof RunAutomaton) {
+            return ((RunAutomaton) value).getTableBytes();
+        }
+        return ((MultiPatternSearcher) value).getTableBytes();
+    }
+
+    /**
+     * Evicts the least recently used entries that are compiled, until the
+     * weight is at most maxWeight. Must be called holding the lock.
+     */
+    private void evict() {
+        final Iterator<Entry> it = this.entries.values().iterator();
+        while (this.weight > this.maxWeight && it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.weight >= 0) {
+                it.remove();
+                this.weight -= entry.weight;
+                this.evictionCount++;
+            }
+        }
+    }
+
+    private static Object await(final FutureTask<Object> task) {
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Removes all the entries. Compilations in progress still return
+     * their result, but do not add it to the cache.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+    /** Number of entries, including those being compiled. */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /** Number of bytes of the tables of the cached automata. */
+    public synchronized long getWeight() {
+        return this.weight;
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * Number of requests that found their key in the cache, compiled or
+     * being compiled.
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /** Number of requests that started a compilation. */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /** Number of entries evicted to bound the weight. */
+    public synchronized long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /** Total time spent compiling, in nanoseconds, over all threads. */
+    public synchronized long getCompileNanos() {
+        return this.compileNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PatternCache(size=" + this.entries.size()
+                + ", weight=" + this.weight + "/" + this.maxWeight
+                + ", hits=" + this.hitCount
+                + ", misses=" + this.missCount
+                + ", evictions=" + this.evictionCount
+                + ", compileMillis=" + (this.compileNanos / 1000000) + ")";
+    }
+
+    private enum Kind {
+        RUN_AUTOMATON,
+        SEARCHER
+    }
+
+    private static final class Key {
+        final Kind kind;
+        final List<String> patterns;
+        final int flags;
+        final AutomatonProvider provider;
+
+        Key(final Kind kind, final List<String> patterns, final int flags, final AutomatonProvider provider) {
+            this.kind = kind;
+            this.patterns = patterns;
+            this.flags = flags;
+            this.provider = provider;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return this.kind == other.kind
+                    && this.patterns.equals(other.patterns)
+                    && this.flags == other.flags
+                    && this.provider == other.provider;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.kind.hashCode();
+            h = 31 * h + this.patterns.hashCode();
+            h = 31 * h + this.flags;
+            h = 31 * h + System.identityHashCode(this.provider);
+            return h;
+        }
+    }
+
+    private static final class Entry {
+        final FutureTask<Object> task;
+        // bytes of the tables of the value, -1 while compiling.
+        long weight = -1;
+
+        Entry(final FutureTask<Object> task) {
+            this.task = task;
+        }
+    }
+}
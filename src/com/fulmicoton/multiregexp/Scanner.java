@@ -1,24 +1,40 @@
 package com.fulmicoton.multiregexp;
 
-import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 
+/**
+ * Splits an input into tokens.
+ *
+ * A Reader is read in bulk into a buffer. In-memory inputs (CharSequence,
+ * including CharBuffer, and char[] slices) are scanned in place, without
+ * being copied, and start and end are then offsets in the input given by
+ * the caller.
+ */
 public class Scanner<T extends Enum> {
 
 
-    private static final int BUFFER_NUM_BITS = 8;
-    private static final int MASK = (1 << BUFFER_NUM_BITS) - 1;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    // chars kept before the start of the current token, for the context of ScanException.
+    private static final int CONTEXT_LENGTH = 10;
 
     private final MultiPatternAutomaton automaton;
 
-    private final char[] circularBuffer = new char[1 << BUFFER_NUM_BITS];
+    // holds the chars from offset bufferOffset to readUntil of the input.
+    // For a char[] input, it is the caller's array.
+    private char[] buffer;
+    private int bufferOffset = 0;
+    // buffer for reading a Reader, kept across resets.
+    private char[] readerBuffer;
+    // input, when scanning a CharSequence that is not backed by a char[].
+    private CharSequence charSequence;
+    private int inputStart = 0;
     public Reader reader;
 
     private boolean endOfReader = false;
     private final ArrayList<T> tokenTypes;
-    // private int cursor;
     private int readUntil;
 
     public T type;
@@ -28,39 +44,113 @@ public class Scanner<T extends Enum> {
 
 
     public void reset(final Reader reader) {
+        if (this.readerBuffer == null) {
+            this.readerBuffer = new char[INITIAL_BUFFER_SIZE];
+        }
         this.reader = reader;
-        this.start = 0;
-        this.end = 0;
+        this.buffer = this.readerBuffer;
+        this.charSequence = null;
         this.endOfReader = false;
-        this.type = null;
         this.readerLength = Integer.MAX_VALUE;
         this.readUntil = 0;
+        this.bufferOffset = 0;
+        this.resetTokens(0);
+    }
+
+    /**
+     * Scans the given chars in place. Offsets are indexes in the
+     * CharSequence; for a CharBuffer, they are relative to its position,
+     * and its backing array is read directly if it has one.
+     */
+    public void reset(final CharSequence charSequence) {
+        if (charSequence instanceof CharBuffer && ((CharBuffer) charSequence).hasArray()) {
+            // CharBuffer.charAt(i) is get(position + i)
+            final CharBuffer charBuffer = (CharBuffer) charSequence;
+            final int arrayStart = charBuffer.arrayOffset() + charBuffer.position();
+            this.resetInMemory(charBuffer.array(), -arrayStart, 0, charBuffer.remaining());
+            return;
+        }
+        this.resetInMemory(null, 0, 0, charSequence.length());
+        this.charSequence = charSequence;
     }
 
-    private static Reader readerFromCharSequence(final CharSequence charSeq) {
-        final int numChars = charSeq.length();
-        final char[] chars = new char[numChars];
-        for (int i=0; i<numChars; i++) {
-            chars[i] = charSeq.charAt(i);
+    /**
+     * Scans chars[offset .. offset+length-1] in place. Offsets are indexes
+     * in the array.
+     */
+    public void reset(final char[] chars, final int offset, final int length) {
+        if (offset < 0 || length < 0 || offset + length > chars.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + " for " + chars.length + " chars");
         }
-        return new CharArrayReader(chars);
+        this.resetInMemory(chars, 0, offset, offset + length);
+    }
+
+    /**
+     * @param chars the input as an array, where the char at offset i is
+     *              chars[i - bufferOffset], or null for a CharSequence.
+     * @param from offset of the first char to scan.
+     * @param to offset after the last char to scan.
+     */
+    private void resetInMemory(final char[] chars, final int bufferOffset, final int from, final int to) {
+        this.reader = null;
+        this.buffer = chars;
+        this.charSequence = null;
+        this.bufferOffset = bufferOffset;
+        this.endOfReader = true;
+        this.readerLength = to;
+        this.readUntil = to;
+        this.resetTokens(from);
+    }
+
+    private void resetTokens(final int from) {
+        this.inputStart = from;
+        this.start = from;
+        this.end = from;
+        this.type = null;
     }
 
     public Scanner(final MultiPatternAutomaton automaton,
                    final CharSequence charSequence,
                    final ArrayList<T> tokenTypes) {
-        this(automaton, readerFromCharSequence(charSequence), tokenTypes);
+        this.automaton = automaton;
+        this.tokenTypes = tokenTypes;
+        this.reset(charSequence);
+    }
+
+    public Scanner(final MultiPatternAutomaton automaton,
+                   final char[] chars,
+                   final int offset,
+                   final int length,
+                   final ArrayList<T> tokenTypes) {
+        this.automaton = automaton;
+        this.tokenTypes = tokenTypes;
+        this.reset(chars, offset, length);
     }
 
     public Scanner(final MultiPatternAutomaton automaton,
                    final Reader reader,
                    final ArrayList<T> tokenTypes) {
         this.automaton = automaton;
-        this.reader = reader;
         this.tokenTypes = tokenTypes;
+        this.reset(reader);
     }
 
 
+    /**
+     * Scans all the remaining tokens, passing each of them to the handler.
+     * Nothing is allocated per token.
+     *
+     * @return the number of tokens.
+     */
+    public int scan(final TokenHandler handler) throws ScanException, IOException {
+        int nbTokens = 0;
+        while (this.next()) {
+            handler.onToken(this.type.ordinal(), this.start, this.end);
+            nbTokens++;
+        }
+        return nbTokens;
+    }
+
     /**
      * Same as next(), but throws unchecked Exception.
      */
@@ -72,37 +162,45 @@ public class Scanner<T extends Enum> {
         }
     }
 
-    private void put(final int i, final char c) {
-        this.circularBuffer[i & MASK] = c;
-    }
-
-    private char get(final int i) {
-        return this.circularBuffer[i & MASK];
-    }
-
-    private char readOne(final int i) throws IOException {
-        if (i < this.readUntil) {
-            return this.circularBuffer[i & MASK];
+    /**
+     * Reads more chars from the reader into the buffer.
+     *
+     * When the buffer is full, the chars before the current token (but
+     * CONTEXT_LENGTH of them) are dropped, and the buffer is grown if that
+     * frees less than half of it. Its size is thus bounded by twice the
+     * longest token, and not by the input size.
+     *
+     * @return false if the end of the reader has been reached.
+     */
+    private boolean fill() throws IOException {
+        if (this.endOfReader) {
+            return false;
         }
-        if (i == this.readUntil) {
-            if (this.endOfReader) {
-                return 0;
-            }
-            final int cInt = this.reader.read();
-            if (cInt < 0) {
-                this.endOfReader = true;
-                this.readerLength = i;
-                return 0;
+        if (this.readUntil - this.bufferOffset == this.buffer.length) {
+            final int keepFrom = Math.max(this.bufferOffset, this.start - CONTEXT_LENGTH);
+            final int kept = this.readUntil - keepFrom;
+            if (kept > this.buffer.length / 2) {
+                final char[] newBuffer = new char[this.buffer.length * 2];
+                System.arraycopy(this.buffer, keepFrom - this.bufferOffset, newBuffer, 0, kept);
+                this.buffer = newBuffer;
             }
             else {
-                this.readUntil += 1;
-                final char chr = (char)cInt;
-                this.put(i, chr);
-                return chr;
+                System.arraycopy(this.buffer, keepFrom - this.bufferOffset, this.buffer, 0, kept);
             }
+            this.bufferOffset = keepFrom;
         }
-        throw new IOException("");
-
+        final int bufferEnd = this.readUntil - this.bufferOffset;
+        int nbRead;
+        do {
+            nbRead = this.reader.read(this.buffer, bufferEnd, this.buffer.length - bufferEnd);
+        } while (nbRead == 0);
+        if (nbRead < 0) {
+            this.endOfReader = true;
+            this.readerLength = this.readUntil;
+            return false;
+        }
+        this.readUntil += nbRead;
+        return true;
     }
 
     public boolean next() throws ScanException, IOException {
@@ -116,12 +214,15 @@ public class Scanner<T extends Enum> {
         int p = 0;
         int highestPriorityMatch = Integer.MAX_VALUE;
         int lastLetter = start;
+        final CharSequence charSequence = this.charSequence;
 
-        for (int cursor = start; cursor < this.readerLength; cursor++) {
-            final char chr = this.readOne(cursor);
-            if (chr == 0) {
+        for (int cursor = start; ; cursor++) {
+            if (cursor == this.readUntil && !this.fill()) {
                 break;
             }
+            final char chr = (charSequence != null)
+                    ? charSequence.charAt(cursor)
+                    : this.buffer[cursor - this.bufferOffset];
             p = this.automaton.step(p, chr);
             if (p == -1) {
                 break;
@@ -151,11 +252,11 @@ public class Scanner<T extends Enum> {
         // No tokens have been found. Raised an expression
         // with a bit of context, and the offset in the string.
         if (highestPriorityMatch == Integer.MAX_VALUE) {
-            if (this.start == 0) {
+            if (this.start == this.inputStart) {
                 return false;
             }
-            final int contextStart = Math.max(0, this.start - 10);
-            final int contextEnd = Math.min(this.start + 10, this.readUntil);
+            final int contextStart = Math.max(Math.max(this.inputStart, this.bufferOffset), this.start - CONTEXT_LENGTH);
+            final int contextEnd = Math.min(this.start + CONTEXT_LENGTH, this.readUntil);
             final String context = this.subSequence(contextStart, this.start) + "|" +  this.subSequence(this.start, contextEnd);
             throw new ScanException(context, this.start);
         }
@@ -165,7 +266,10 @@ public class Scanner<T extends Enum> {
     }
 
     private CharSequence subSequence(final int start, final int end) {
-        return new CharSeq(this.circularBuffer, start, end-start);
+        if (this.charSequence != null) {
+            return this.charSequence.subSequence(start, end);
+        }
+        return new CharSeq(this.buffer, start - this.bufferOffset, end - start);
     }
 
 
@@ -191,16 +295,21 @@ public class Scanner<T extends Enum> {
 
         @Override
         public char charAt(final int index) {
-            return this.buffer[(this.start + index) & MASK];
+            return this.buffer[this.start + index];
         }
 
         @Override
         public CharSequence subSequence(final int newStart, final int newEnd) {
-            return new CharSeq(this.buffer, (this.start + newStart) & MASK, newEnd - newStart);
+            return new CharSeq(this.buffer, this.start + newStart, newEnd - newStart);
         }
     }
 
+    /**
+     * Returns the text of the current token. When reading a Reader, it is
+     * a view of the scanner's buffer, only valid until the next call to
+     * next().
+     */
     public CharSequence tokenString() {
-        return new CharSeq(this.circularBuffer, this.start, this.end - this.start);
+        return this.subSequence(this.start, this.end);
     }
 }
@@ -0,0 +1,19 @@
+package com.fulmicoton.multiregexp;
+
+/**
+ * Receives the tokens of {@link Scanner#scan(TokenHandler)} without any
+ * object being allocated per token.
+ *
+ * The text of a token is not materialized. For an in-memory input, it is
+ * input[start .. end-1]. For a Reader, it can be read with
+ * {@link Scanner#tokenString()} during the call.
+ */
+public interface TokenHandler {
+
+    /**
+     * @param type ordinal of the token type
+     * @param start offset of the first char of the token
+     * @param end offset after the last char of the token
+     */
+    void onToken(int type, int start, int end);
+}
@@ -46,6 +46,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Finite-state automaton with regular expression operations.
@@ -65,6 +66,9 @@ import java.util.Set;
  * If the states or transitions are manipulated manually, the {@link #restoreInvariant()}
  * and {@link #setDeterministic(boolean)} methods should be used afterwards to restore 
  * representation invariants that are assumed by the built-in automata operations.
+ * <p>
+ * An automaton may be frozen (see {@link #freeze()}), so that it can be shared between
+ * threads and read by operations without being copied.
  * 
  * @author Anders M&oslash;ller &lt;<a href="mailto:amoeller@cs.au.dk">amoeller@cs.au.dk</a>&gt;
  */
@@ -91,13 +95,12 @@ public class Automaton implements Serializable, Cloneable {
 	/**
 	 * Minimize using Hopcroft's O(n log n) algorithm.
 	 * This is regarded as one of the most generally efficient algorithms that exist.
+	 * Implemented as the Valmari-Lehtinen variant, which uses O(m log n) time and
+	 * O(m) space for m transitions (see {@link MinimizationOperations#minimizeValmari(Automaton)}).
 	 * @see #setMinimization(int)
 	 */
 	public static final int MINIMIZE_HOPCROFT = 2;
 	
-	/** Selects minimization algorithm (default: <code>MINIMIZE_HOPCROFT</code>). */
-	static int minimization = MINIMIZE_HOPCROFT;
-	
 	/** Initial state of this automaton. */
 	State initial;
 	
@@ -114,16 +117,20 @@ public class Automaton implements Serializable, Cloneable {
 	/** Singleton string. Null if not applicable. */
 	String singleton;
 	
-	/** Minimize always flag. */
-	static boolean minimize_always = false;
-	
-	/** Selects whether operations may modify the input automata (default: <code>false</code>). */
-	static boolean allow_mutation = false;
+	/** If true, then this automaton and its states cannot be modified (see {@link #freeze()}). */
+	transient boolean frozen;
 	
 	/** Caches the <code>isDebug</code> state. */
 	static Boolean is_debug = null;
 	
-	public static boolean loadAllBuiltins = true;
+	/**
+	 * Selects whether {@link Datatypes} builds all its automata when it is
+	 * initialized, instead of building each one the first time it is used
+	 * (default: <code>false</code>). Must be set before the first use of
+	 * <code>Datatypes</code>, which is typically the first regular
+	 * expression with a builtin class such as <tt>\w</tt>.
+	 */
+	public static boolean loadAllBuiltins = false;
 	
 	/** 
 	 * Constructs a new automaton that accepts the empty language.
@@ -146,11 +153,12 @@ public class Automaton implements Serializable, Cloneable {
 	}
 	*/
 	/** 
-	 * Selects minimization algorithm (default: <code>MINIMIZE_HOPCROFT</code>). 
+	 * Selects minimization algorithm (default: <code>MINIMIZE_HOPCROFT</code>)
+	 * of the default {@link CompilationContext}. 
 	 * @param algorithm minimization algorithm
 	 */
 	static public void setMinimization(int algorithm) {
-		minimization = algorithm;
+		CompilationContext.getDefault().setMinimization(algorithm);
 	}
 	
 	/**
@@ -158,10 +166,11 @@ public class Automaton implements Serializable, Cloneable {
 	 * If this flag is set, then {@link #minimize()} will automatically
 	 * be invoked after all operations that otherwise may produce non-minimal automata.
 	 * By default, the flag is not set.
+	 * Applies to the default {@link CompilationContext}.
 	 * @param flag if true, the flag is set
 	 */
 	static public void setMinimizeAlways(boolean flag) {
-		minimize_always = flag;
+		CompilationContext.getDefault().setMinimizeAlways(flag);
 	}
 	
 	/**
@@ -169,12 +178,14 @@ public class Automaton implements Serializable, Cloneable {
 	 * If this flag is set, then all automata operations may modify automata given as input;
 	 * otherwise, operations will always leave input automata languages unmodified. 
 	 * By default, the flag is not set.
+	 * Applies to the default {@link CompilationContext}.
 	 * @param flag if true, the flag is set
 	 * @return previous value of the flag
 	 */
 	static public boolean setAllowMutate(boolean flag) {
-		boolean b = allow_mutation;
-		allow_mutation = flag;
+		CompilationContext c = CompilationContext.getDefault();
+		boolean b = c.getAllowMutate();
+		c.setAllowMutate(flag);
 		return b;
 	}
 	
@@ -183,20 +194,65 @@ public class Automaton implements Serializable, Cloneable {
 	 * If this flag is set, then all automata operations may modify automata given as input;
 	 * otherwise, operations will always leave input automata languages unmodified. 
 	 * By default, the flag is not set.
-	 * @return current value of the flag
+	 * @return current value of the flag in the context of the current thread
 	 */
 	static boolean getAllowMutate() {
-		return allow_mutation;
+		return CompilationContext.current().allow_mutation;
 	}
 	
 	void checkMinimizeAlways() {
-		if (minimize_always)
+		if (CompilationContext.current().minimize_always)
 			minimize();
 	}
 	
 	boolean isSingleton() {
 		return singleton!=null;
 	}
+	
+	/**
+	 * Throws <code>IllegalStateException</code> if this automaton is frozen.
+	 */
+	void checkMutable() {
+		if (frozen)
+			throw new IllegalStateException("automaton is frozen");
+	}
+	
+	/**
+	 * Makes this automaton immutable. A frozen automaton can be shared between
+	 * threads, once safely published, and operations read it without copying it:
+	 * those that need to modify an input copy a frozen one even if the allow
+	 * mutate flag is set, and {@link #clone()} returns a mutable copy.
+	 * Methods that modify a frozen automaton or its states throw
+	 * <code>IllegalStateException</code>.
+	 * <p>
+	 * The automaton is first expanded if singleton, its dead transitions are
+	 * removed, it is determinized, and its states are numbered once and for
+	 * all. Freezing a frozen automaton has no effect.
+	 * <p>
+	 * Complexity: linear in number of states and transitions (if already deterministic).
+	 * @return this automaton
+	 */
+	public Automaton freeze() {
+		if (frozen)
+			return this;
+		expandSingleton();
+		removeDeadTransitions();
+		determinize();
+		Set<State> states = getStates();
+		setStateNumbers(states);
+		for (State s : states)
+			s.transitions.frozen = true;
+		frozen = true;
+		return this;
+	}
+	
+	/**
+	 * Returns true if this automaton is frozen.
+	 * @see #freeze()
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
 
 	/**
 	 * Returns the singleton string for this automaton.
@@ -213,6 +269,7 @@ public class Automaton implements Serializable, Cloneable {
 	 * @param s state
 	 */
 	public void setInitialState(State s) {
+		checkMutable();
 		initial = s;
 		singleton = null;
 	}
@@ -242,6 +299,7 @@ public class Automaton implements Serializable, Cloneable {
 	 *                      may be nondeterministic
 	 */
 	public void setDeterministic(boolean deterministic) {
+		checkMutable();
 		this.deterministic = deterministic;
 	}
 	
@@ -281,19 +339,10 @@ public class Automaton implements Serializable, Cloneable {
 		visited.add(initial);
 		while (worklist.size() > 0) {
 			State s = worklist.removeFirst();
-			Collection<Transition> tr;
-			/*
-			if (isDebug())
-				tr = s.getSortedTransitions(false);
-			else
-				tr = s.transitions;
-			*/
-			tr = s.transitions;
-			for (Transition t : tr)
-				if (!visited.contains(t.to)) {
-					visited.add(t.to);
-					worklist.add(t.to);
-				}
+			TransitionSet ts = s.transitions;
+			for (int i = 0; i < ts.size; i++)
+				if (visited.add(ts.to[i]))
+					worklist.add(ts.to[i]);
 		}
 		return visited;
 	}
@@ -313,15 +362,26 @@ public class Automaton implements Serializable, Cloneable {
 			State s = worklist.removeFirst();
 			if (s.accept)
 				accepts.add(s);
-			for (Transition t : s.transitions)
-				if (!visited.contains(t.to)) {
-					visited.add(t.to);
-					worklist.add(t.to);
-				}
+			TransitionSet ts = s.transitions;
+			for (int i = 0; i < ts.size; i++)
+				if (visited.add(ts.to[i]))
+					worklist.add(ts.to[i]);
 		}
 		return accepts;
 	}
 	
+	/** 
+	 * Returns the set of states that are reachable from the initial state,
+	 * numbered consecutively. The states of a frozen automaton keep the
+	 * numbers given by {@link #freeze()}, so that reading it writes nothing.
+	 */
+	Set<State> getNumberedStates() {
+		Set<State> states = getStates();
+		if (!frozen)
+			setStateNumbers(states);
+		return states;
+	}
+	
 	/** 
 	 * Assigns consecutive numbers to the given states. 
 	 */
@@ -335,6 +395,7 @@ public class Automaton implements Serializable, Cloneable {
 	 * Adds transitions to explicit crash state to ensure that transition function is total. 
 	 */
 	void totalize() {
+		checkMutable();
 		State s = new State();
 		s.transitions.add(new Transition(Character.MIN_VALUE, Character.MAX_VALUE, s));
 		for (State p : getStates()) {
@@ -365,12 +426,13 @@ public class Automaton implements Serializable, Cloneable {
 	 * An automaton is "reduced" by combining overlapping and adjacent edge intervals with same destination. 
 	 */
 	public void reduce() {
+		checkMutable();
 		if (isSingleton())
 			return;
 		Set<State> states = getStates();
 		setStateNumbers(states);
 		for (State s : states) {
-			List<Transition> st = s.getSortedTransitions(true);
+			Transition[] st = s.getSortedTransitionArray(true);
 			s.resetTransitions();
 			State p = null;
 			int min = -1, max = -1;
@@ -381,20 +443,20 @@ public class Automaton implements Serializable, Cloneable {
 							max = t.max;
 					} else {
 						if (p != null)
-							s.transitions.add(new Transition((char)min, (char)max, p));
+							s.transitions.add((char)min, (char)max, p);
 						min = t.min;
 						max = t.max;
 					}
 				} else {
 					if (p != null)
-						s.transitions.add(new Transition((char)min, (char)max, p));
+						s.transitions.add((char)min, (char)max, p);
 					p = t.to;
 					min = t.min;
 					max = t.max;
 				}
 			}
 			if (p != null)
-				s.transitions.add(new Transition((char)min, (char)max, p));
+				s.transitions.add((char)min, (char)max, p);
 		}
 		clearHashCode();
 	}
@@ -406,10 +468,11 @@ public class Automaton implements Serializable, Cloneable {
 		Set<Character> pointset = new HashSet<Character>();
 		for (State s : getStates()) {
 			pointset.add(Character.MIN_VALUE);
-			for (Transition t : s.transitions) {
-				pointset.add(t.min);
-				if (t.max < Character.MAX_VALUE)
-					pointset.add((char)(t.max + 1));
+			TransitionSet ts = s.transitions;
+			for (int i = 0; i < ts.size; i++) {
+				pointset.add(ts.min[i]);
+				if (ts.max[i] < Character.MAX_VALUE)
+					pointset.add((char)(ts.max[i] + 1));
 			}
 		}
 		char[] points = new char[pointset.size()];
@@ -433,9 +496,11 @@ public class Automaton implements Serializable, Cloneable {
 		HashMap<State, Set<State>> map = new HashMap<State, Set<State>>();
 		for (State s : states)
 			map.put(s, new HashSet<State>());
-		for (State s : states)
-			for (Transition t : s.transitions)
-				map.get(t.to).add(s);
+		for (State s : states) {
+			TransitionSet ts = s.transitions;
+			for (int i = 0; i < ts.size; i++)
+				map.get(ts.to[i]).add(s);
+		}
 		Set<State> live = new HashSet<State>(getAcceptStates());
 		LinkedList<State> worklist = new LinkedList<State>(live);
 		while (worklist.size() > 0) {
@@ -452,28 +517,31 @@ public class Automaton implements Serializable, Cloneable {
 	/** 
 	 * Removes transitions to dead states and calls {@link #reduce()} and {@link #clearHashCode()}.
 	 * (A state is "dead" if no accept state is reachable from it.)
+	 * Does nothing if this automaton is frozen, as {@link #freeze()} removes them.
 	 */
 	public void removeDeadTransitions() {
+		if (frozen)
+			return;
 		clearHashCode();
 		if (isSingleton())
 			return;
 		Set<State> states = getStates();
 		Set<State> live = getLiveStates(states);
 		for (State s : states) {
-			Set<Transition> st = s.transitions;
+			TransitionSet st = s.transitions;
 			s.resetTransitions();
-			for (Transition t : st)
-				if (live.contains(t.to))
-					s.transitions.add(t);
+			for (int i = 0; i < st.size; i++)
+				if (live.contains(st.to[i]))
+					s.transitions.add(st.min[i], st.max[i], st.to[i]);
 		}
 		reduce();
 	}
 	
 	/** 
-	 * Returns a sorted array of transitions for each state (and sets state numbers). 
+	 * Returns a sorted array of transitions for each of the given numbered states
+	 * (see {@link #getNumberedStates()}). 
 	 */
 	static Transition[][] getSortedTransitions(Set<State> states) {
-		setStateNumbers(states);
 		Transition[][] transitions = new Transition[states.size()][];
 		for (State s : states)
 			transitions[s.number] = s.getSortedTransitionArray(false);
@@ -545,8 +613,12 @@ public class Automaton implements Serializable, Cloneable {
 	 */
 	@Override
 	public int hashCode() {
-		if (hash_code == 0)
-			minimize();
+		if (hash_code == 0) {
+			if (frozen)
+				hash_code = clone().hashCode(); // minimizes the copy
+			else
+				minimize();
+		}
 		return hash_code;
 	}
 	
@@ -579,8 +651,7 @@ public class Automaton implements Serializable, Cloneable {
 				Transition.appendCharString(c, b);
 			b.append("\n");
 		} else {
-			Set<State> states = getStates();
-			setStateNumbers(states);
+			Set<State> states = getNumberedStates();
 			b.append("initial state: ").append(initial.number).append("\n");
 			for (State s : states)
 				b.append(s.toString());
@@ -595,8 +666,7 @@ public class Automaton implements Serializable, Cloneable {
 	public String toDot() {
 		StringBuilder b = new StringBuilder("digraph Automaton {\n");
 		b.append("  rankdir = LR;\n");
-		Set<State> states = getStates();
-		setStateNumbers(states);
+		Set<State> states = getNumberedStates();
 		for (State s : states) {
 			b.append("  ").append(s.number);
 			if (s.accept)
@@ -625,10 +695,11 @@ public class Automaton implements Serializable, Cloneable {
 	}
 
 	/**
-	 * Returns a clone of this automaton unless <code>allow_mutation</code> is set, expands if singleton.
+	 * Returns a clone of this automaton unless <code>allow_mutation</code> is set
+	 * and this automaton is not frozen, expands if singleton.
 	 */
 	Automaton cloneExpandedIfRequired() {
-		if (allow_mutation) {
+		if (getAllowMutate() && !frozen) {
 			expandSingleton();
 			return this;
 		} else
@@ -636,12 +707,13 @@ public class Automaton implements Serializable, Cloneable {
 	}
 
 	/**
-	 * Returns a clone of this automaton.
+	 * Returns a clone of this automaton. The clone of a frozen automaton is not frozen.
 	 */
 	@Override
 	public Automaton clone() {
 		try {
 			Automaton a = (Automaton)super.clone();
+			a.frozen = false;
 			if (!isSingleton()) {
 				HashMap<State, State> m = new HashMap<State, State>();
 				Set<State> states = getStates();
@@ -652,8 +724,9 @@ public class Automaton implements Serializable, Cloneable {
 					p.accept = s.accept;
 					if (s == initial)
 						a.initial = p;
-					for (Transition t : s.transitions)
-						p.transitions.add(new Transition(t.min, t.max, m.get(t.to)));
+					TransitionSet ts = s.transitions;
+					for (int i = 0; i < ts.size; i++)
+						p.transitions.add(ts.min[i], ts.max[i], m.get(ts.to[i]));
 				}
 			}
 			return a;
@@ -663,10 +736,11 @@ public class Automaton implements Serializable, Cloneable {
 	}
 	
 	/**
-	 * Returns a clone of this automaton, or this automaton itself if <code>allow_mutation</code> flag is set. 
+	 * Returns a clone of this automaton, or this automaton itself if <code>allow_mutation</code> flag is set
+	 * and this automaton is not frozen. 
 	 */
 	Automaton cloneIfRequired() {
-		if (allow_mutation)
+		if (getAllowMutate() && !frozen)
 			return this;
 		else
 			return clone();
@@ -890,6 +964,20 @@ public class Automaton implements Serializable, Cloneable {
 		BasicOperations.determinize(this);
 	}
 
+	/**
+	 * See {@link BasicOperations#determinize(Automaton, DeterminizeStats)}.
+	 */
+	public void determinize(DeterminizeStats stats) {
+		BasicOperations.determinize(this, stats);
+	}
+
+	/**
+	 * See {@link BasicOperations#determinize(Automaton, ForkJoinPool, DeterminizeStats)}.
+	 */
+	public void determinize(ForkJoinPool pool) {
+		BasicOperations.determinize(this, pool, null);
+	}
+
 	/** 
 	 * See {@link BasicOperations#addEpsilons(Automaton, Collection)}.
 	 */
@@ -962,6 +1050,13 @@ public class Automaton implements Serializable, Cloneable {
 		return SpecialOperations.overlap(this, a);
 	}
 	
+	/**
+	 * See {@link Utf8Operations#toUtf8(Automaton)}.
+	 */
+	public Automaton toUtf8() {
+		return Utf8Operations.toUtf8(this);
+	}
+	
 	/** 
 	 * See {@link SpecialOperations#singleChars(Automaton)}.
 	 */
@@ -29,6 +29,8 @@
 
 package dk.brics.automaton;
 
+import java.util.BitSet;
+
 //import java.util.regex.MatchResult;
 
 /**
@@ -38,26 +40,57 @@ package dk.brics.automaton;
  * @author John Gibson &lt;<a href="mailto:jgibson@mitre.org">jgibson@mitre.org</a>&gt;
  * @see RunAutomaton#newMatcher(java.lang.CharSequence)
  * @see RunAutomaton#newMatcher(java.lang.CharSequence, int, int)
+ * @see LazyRunAutomaton#newMatcher(java.lang.CharSequence)
  */
 public class AutomatonMatcher {
 
-	AutomatonMatcher(final CharSequence chars, final RunAutomaton automaton) {
+	AutomatonMatcher(final CharSequence chars, final MatchEngine automaton) {
 		this.chars = chars;
 		this.automaton = automaton;
 	}
 
-	private final RunAutomaton automaton;
+	private final MatchEngine automaton;
 	private final CharSequence chars;
 
 	private int matchStart = -1;
 
 	private int matchEnd = -1;
 
+	// steps allowed to the prefilter beyond twice the input length
+	private static final int PREFILTER_SLACK = 4096;
+
+	// offsets where a match starts, computed when the prefilter gives up
+	private BitSet matchStarts;
+
+	// steps left to the prefilter, shared by the calls to find()
+	private long[] prefilterBudget;
+
+	// group offsets of the current match, computed on demand
+	private int[] groups;
+
+	// pairs (offset, state) read by the runs of the previous matches
+	private final MatchMemo memo = new MatchMemo();
+
 	/**
 	 * Find the next matching subsequence of the input.
 	 * <br />
 	 * This also updates the values for the {@code start}, {@code end}, and
 	 * {@code group} methods.
+	 * <br />
+	 * If the automaton has a literal prefix or few possible first chars,
+	 * the input is skipped with <code>String.indexOf</code> to the offsets
+	 * where a match may start, and the automaton only runs from there, and
+	 * no match is searched at all if a literal that all matches contain does
+	 * not occur. Otherwise, or once the runs from such offsets have cost
+	 * more than twice the length of the input, one backward pass over the
+	 * whole input finds the offsets where matches start. Each match is the
+	 * longest one from the next such offset. The run finding it continues
+	 * past its end until the dead state, but stops where it meets a run of
+	 * a previous match in the same state (see {@link MatchMemo}), so that
+	 * finding all matches costs at most the length of the input times the
+	 * number of states of the automaton, instead of restarting the
+	 * automaton at every offset. For most patterns, runs rarely overlap
+	 * and the cost is linear in the input.
 	 *
 	 * @return {@code true} if there is a matching subsequence.
 	 */
@@ -81,42 +114,27 @@ public class AutomatonMatcher {
 				}
 		}
 
-		int match_start;
-		int match_end;
-		if (automaton.isAccept(automaton.getInitialState())) {
-			match_start = begin;
-			match_end = begin;
-		} else {
-			match_start = -1;
-			match_end = -1;
-		}
-		int l = getChars().length();
-		while (begin < l) {
-			int p = automaton.getInitialState();
-			for (int i = begin; i < l; i++) {
-				final int new_state = automaton.step(p, getChars().charAt(i));
-				if (new_state == -1) {
-				    break;
-				} else if (automaton.isAccept(new_state)) {
-				    // found a match from begin to (i+1)
-				    match_start = begin;
-				    match_end=(i+1);
-				}
-				p = new_state;
+		if (matchStarts == null) {
+			if (prefilterBudget == null)
+				prefilterBudget = new long[] { 2L * getChars().length() + PREFILTER_SLACK };
+			final int match_start = automaton.prefilteredMatchStart(getChars(), begin, prefilterBudget);
+			if (match_start == -1) {
+				setMatch(-2, -2);
+				return false;
 			}
-			if (match_start != -1) {
-				setMatch(match_start, match_end);
+			if (match_start >= 0) {
+				setMatch(match_start, match_start + automaton.longestMatch(getChars(), match_start, memo));
 				return true;
 			}
-			begin += 1;
+			matchStarts = automaton.matchStarts(getChars());
 		}
-		if (match_start != -1) {
-			setMatch(match_start, match_end);
-			return true;
-		} else {
+		final int match_start = matchStarts.nextSetBit(begin);
+		if (match_start == -1) {
 			setMatch(-2, -2);
 			return false;
 		}
+		setMatch(match_start, match_start + automaton.longestMatch(getChars(), match_start, memo));
+		return true;
 	}
 
 	private void setMatch(final int matchStart, final int matchEnd) throws IllegalArgumentException {
@@ -125,6 +143,7 @@ public class AutomatonMatcher {
 		}
 		this.matchStart = matchStart;
 		this.matchEnd = matchEnd;
+		this.groups = null;
 	}
 
 	private int getMatchStart() {
@@ -155,20 +174,20 @@ public class AutomatonMatcher {
 	 * Returns the offset after the last character matched of the specified
 	 * capturing group.
 	 * <br />
-	 * Note that because the automaton does not support capturing groups the
-	 * only valid group is 0 (the entire match).
+	 * Capturing groups are only available if the automaton was made by
+	 * {@link RegExp#toRunAutomaton()}, otherwise the only valid group is 0
+	 * (the entire match).
 	 *
 	 * @param group the desired capturing group.
 	 * @return The offset after the last character matched of the specified
-	 *  capturing group.
+	 *  capturing group, or -1 if the group did not participate in the match.
 	 * @throws IllegalStateException if there has not been a match attempt or
 	 *  if the last attempt yielded no results.
 	 * @throws IndexOutOfBoundsException if the specified capturing group does
 	 *  not exist in the underlying automaton.
 	 */
 	public int end(final int group) throws IndexOutOfBoundsException, IllegalStateException {
-		onlyZero(group);
-		return end();
+		return getGroups(group)[2 * group + 1];
 	}
 
 	/**
@@ -187,8 +206,9 @@ public class AutomatonMatcher {
 	 * Returns the subsequence of the input found by the specified capturing
 	 * group during the previous match operation.
 	 * <br />
-	 * Note that because the automaton does not support capturing groups the
-	 * only valid group is 0 (the entire match).
+	 * Capturing groups are only available if the automaton was made by
+	 * {@link RegExp#toRunAutomaton()}, otherwise the only valid group is 0
+	 * (the entire match).
 	 *
 	 * @param group the desired capturing group.
 	 * @return The subsequence of the input found by the specified capturing
@@ -200,20 +220,24 @@ public class AutomatonMatcher {
 	 *  not exist in the underlying automaton.
 	 */
 	public String group(final int group) throws IndexOutOfBoundsException, IllegalStateException {
-		onlyZero(group);
-		return group();
+		final int[] g = getGroups(group);
+		if (g[2 * group] < 0) {
+			return null;
+		}
+		return chars.subSequence(g[2 * group], g[2 * group + 1]).toString();
 	}
 
 	/**
 	 * Returns the number of capturing groups in the underlying automaton.
 	 * <br />
-	 * Note that because the automaton does not support capturing groups this
-	 * method will always return 0.
+	 * Note that this is 0 unless the automaton was made by
+	 * {@link RegExp#toRunAutomaton()}.
 	 *
 	 * @return The number of capturing groups in the underlying automaton.
 	 */
 	public int groupCount() {
-		return 0;
+		final TaggedAutomaton tagged = automaton.getTaggedAutomaton();
+		return tagged == null ? 0 : tagged.groups;
 	}
 
 	/**
@@ -232,20 +256,20 @@ public class AutomatonMatcher {
 	 * Returns the offset of the first character matched of the specified
 	 * capturing group.
 	 * <br />
-	 * Note that because the automaton does not support capturing groups the
-	 * only valid group is 0 (the entire match).
+	 * Capturing groups are only available if the automaton was made by
+	 * {@link RegExp#toRunAutomaton()}, otherwise the only valid group is 0
+	 * (the entire match).
 	 *
 	 * @param group the desired capturing group.
 	 * @return The offset of the first character matched of the specified
-	 *  capturing group.
+	 *  capturing group, or -1 if the group did not participate in the match.
 	 * @throws IllegalStateException if there has not been a match attempt or
 	 *  if the last attempt yielded no results.
 	 * @throws IndexOutOfBoundsException if the specified capturing group does
 	 *  not exist in the underlying automaton.
 	 */
 	public int start(int group) throws IndexOutOfBoundsException, IllegalStateException {
-		onlyZero(group);
-		return start();
+		return getGroups(group)[2 * group];
 	}
 
 	/**
@@ -260,14 +284,36 @@ public class AutomatonMatcher {
 		final AutomatonMatcher match = new AutomatonMatcher(chars, automaton);
 		match.matchStart = this.matchStart;
 		match.matchEnd = this.matchEnd;
+		match.groups = this.groups;
 		return match;
 	}
 
-	/** Helper method that requires the group argument to be 0. */
-	private static void onlyZero(final int group) throws IndexOutOfBoundsException {
-		if (group != 0) {
-			throw new IndexOutOfBoundsException("The only group supported is 0.");
+	/**
+	 * Helper method that returns the offsets of all groups of the current
+	 * match, after checking the group argument. The offsets are extracted by
+	 * running the tagged automaton over the matched text only.
+	 */
+	private int[] getGroups(final int group) throws IndexOutOfBoundsException, IllegalStateException {
+		if (group < 0 || group > groupCount()) {
+			throw new IndexOutOfBoundsException("No group " + group + ", the number of groups is " + groupCount() + ".");
+		}
+		matchGood();
+		if (groups == null) {
+			final TaggedAutomaton tagged = automaton.getTaggedAutomaton();
+			if (tagged != null) {
+				groups = tagged.match(chars, matchStart, matchEnd);
+			}
+			if (groups == null) {
+				// no groups, or none could be recovered
+				groups = new int[2 * groupCount() + 2];
+				for (int i = 2; i < groups.length; i++) {
+					groups[i] = -1;
+				}
+				groups[0] = matchStart;
+				groups[1] = matchEnd;
+			}
 		}
+		return groups;
 	}
 
 	/** Helper method to check that the last match attempt was valid. */
@@ -38,6 +38,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Basic automata operations.
@@ -293,8 +294,8 @@ final public class BasicOperations {
 		}
 		if (a1 == a2)
 			return a1.cloneIfRequired();
-		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getStates());
-		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getStates());
+		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getNumberedStates());
+		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getNumberedStates());
 		Automaton c = new Automaton();
 		LinkedList<StatePair> worklist = new LinkedList<StatePair>();
 		HashMap<StatePair, StatePair> newstates = new HashMap<StatePair, StatePair>();
@@ -348,8 +349,8 @@ final public class BasicOperations {
 			return a2.run(a1.singleton);
 		}
 		a2.determinize();
-		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getStates());
-		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getStates());
+		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getNumberedStates());
+		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getNumberedStates());
 		LinkedList<StatePair> worklist = new LinkedList<StatePair>();
 		HashSet<StatePair> visited = new HashSet<StatePair>();
 		StatePair p = new StatePair(a1.initial, a2.initial);
@@ -447,57 +448,71 @@ final public class BasicOperations {
 	 * Complexity: exponential in number of states.
 	 */
 	public static void determinize(Automaton a) {
+		determinize(a, (DeterminizeStats)null);
+	}
+
+	/**
+	 * Determinizes the given automaton and records statistics of the
+	 * subset construction. The statistics are not modified if the
+	 * automaton is already deterministic.
+	 * <p>
+	 * Complexity: exponential in number of states.
+	 * @param stats statistics object to fill in, may be null
+	 */
+	public static void determinize(Automaton a, DeterminizeStats stats) {
+		determinize(a, null, stats);
+	}
+
+	/**
+	 * Determinizes the given automaton, using the given pool for large
+	 * automata, and records statistics of the subset construction. The
+	 * result, including the numbering of states, is the same as with
+	 * {@link #determinize(Automaton, DeterminizeStats)}. The statistics are
+	 * not modified if the automaton is already deterministic.
+	 * <p>
+	 * Complexity: exponential in number of states.
+	 * @param pool pool for constructing states in parallel, or null to construct sequentially
+	 * @param stats statistics object to fill in, may be null
+	 */
+	public static void determinize(Automaton a, ForkJoinPool pool, DeterminizeStats stats) {
 		if (a.deterministic || a.isSingleton())
 			return;
 		Set<State> initialset = new HashSet<State>();
 		initialset.add(a.initial);
-		determinize(a, initialset);
+		determinize(a, initialset, pool, stats);
 	}
 
 	/** 
 	 * Determinizes the given automaton using the given set of initial states. 
 	 */
 	static void determinize(Automaton a, Set<State> initialset) {
-		char[] points = a.getStartPoints();
-		// subset construction
-		Map<Set<State>, Set<State>> sets = new HashMap<Set<State>, Set<State>>();
-		LinkedList<Set<State>> worklist = new LinkedList<Set<State>>();
-		Map<Set<State>, State> newstate = new HashMap<Set<State>, State>();
-		sets.put(initialset, initialset);
-		worklist.add(initialset);
-		a.initial = new State();
-		newstate.put(initialset, a.initial);
-		while (worklist.size() > 0) {
-			Set<State> s = worklist.removeFirst();
-			State r = newstate.get(s);
-			for (State q : s)
-				if (q.accept) {
-					r.accept = true;
-					break;
-				}
-			for (int n = 0; n < points.length; n++) {
-				Set<State> p = new HashSet<State>();
-				for (State q : s)
-					for (Transition t : q.transitions)
-						if (t.min <= points[n] && points[n] <= t.max)
-							p.add(t.to);
-				if (!sets.containsKey(p)) {
-					sets.put(p, p);
-					worklist.add(p);
-					newstate.put(p, new State());
-				}
-				State q = newstate.get(p);
-				char min = points[n];
-				char max;
-				if (n + 1 < points.length)
-					max = (char)(points[n + 1] - 1);
-				else
-					max = Character.MAX_VALUE;
-				r.transitions.add(new Transition(min, max, q));
-			}
-		}
+		determinize(a, initialset, null, null);
+	}
+
+	/**
+	 * Determinizes the given automaton using the given set of initial states.
+	 * See {@link SubsetConstruction}.
+	 */
+	static void determinize(Automaton a, Set<State> initialset, ForkJoinPool pool, DeterminizeStats stats) {
+		long time = System.nanoTime();
+		SubsetConstruction c = new SubsetConstruction(initialset);
+		if (pool == null)
+			c.run();
+		else
+			c.run(pool);
+		a.initial = c.getInitialState();
 		a.deterministic = true;
 		a.removeDeadTransitions();
+		if (stats != null) {
+			stats.nfa_states = c.size;
+			stats.nfa_transitions = c.nedges;
+			stats.points = c.npoints;
+			stats.dfa_states = c.dfa.size();
+			stats.dfa_transitions = c.dfa_transitions;
+			stats.max_subset = c.table.max_subset;
+			stats.subset_elements = c.table.elements;
+			stats.nanos = System.nanoTime() - time;
+		}
 	}
 
 	/** 
@@ -508,6 +523,7 @@ final public class BasicOperations {
 	 *        where epsilon transitions should be added
 	 */
 	public static void addEpsilons(Automaton a, Collection<StatePair> pairs) {
+		a.checkMutable();
 		a.expandSingleton();
 		HashMap<State, HashSet<State>> forward = new HashMap<State, HashSet<State>>();
 		HashMap<State, HashSet<State>> back = new HashMap<State, HashSet<State>>();
@@ -660,8 +676,7 @@ final public class BasicOperations {
 			}
 			return p.accept;
 		} else {
-			Set<State> states = a.getStates();
-			Automaton.setStateNumbers(states);
+			Set<State> states = a.getNumberedStates();
 			LinkedList<State> pp = new LinkedList<State>();
 			LinkedList<State> pp_other = new LinkedList<State>();
 			BitSet bb = new BitSet(states.size());
@@ -721,8 +736,7 @@ final public class BasicOperations {
 			}
 			return p.accept;
 		} else {
-			Set<State> states = a.getStates();
-			Automaton.setStateNumbers(states);
+			Set<State> states = a.getNumberedStates();
 			LinkedList<State> pp = new LinkedList<State>();
 			LinkedList<State> pp_other = new LinkedList<State>();
 			BitSet bb = new BitSet(states.size());
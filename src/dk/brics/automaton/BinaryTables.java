@@ -0,0 +1,331 @@
+package dk.brics.automaton;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Flat binary format for compiled automaton tables.
+ * <p>
+ * A file consists of a header (magic number, format version, kind of the
+ * stored object, payload length), the payload, and a CRC32 checksum of
+ * header and payload. All numbers are little-endian. The payload is a
+ * sequence of ints and arrays; every array is preceded by its length and
+ * padded to a multiple of 4 bytes, so that int arrays can be read in place
+ * from a memory-mapped file.
+ * <p>
+ * The format is written by {@link Writer} and read by {@link Reader}. The
+ * version is increased whenever the layout of a kind changes; files of
+ * another version are rejected.
+ */
+public final class BinaryTables {
+
+	/** Magic number at the start of every file ("ATBL"). */
+	public static final int MAGIC = 0x4c425441;
+
+	/** Current format version. */
+	public static final int VERSION = 3;
+
+	static final int HEADER_SIZE = 20;
+	static final int TRAILER_SIZE = 4;
+
+	private BinaryTables() {}
+
+	/**
+	 * Reads a whole stream into a heap buffer, for {@link Reader}.
+	 */
+	public static ByteBuffer read(InputStream in) throws IOException {
+		byte[] b = new byte[8192];
+		int n = 0;
+		int k;
+		while ((k = in.read(b, n, b.length - n)) != -1) {
+			n += k;
+			if (n == b.length)
+				b = Arrays.copyOf(b, b.length * 2);
+		}
+		return ByteBuffer.wrap(b, 0, n).slice();
+	}
+
+	/**
+	 * Maps a whole file into memory read-only, for {@link Reader}. The
+	 * mapping stays valid after this method returns, and its pages are
+	 * shared with other processes mapping the same file.
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = f.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Builds a file in memory and writes it out with {@link #writeTo(OutputStream)}.
+	 */
+	public static final class Writer {
+
+		private ByteBuffer buf;
+
+		/**
+		 * Starts a file storing an object of the given kind.
+		 */
+		public Writer(int kind) {
+			buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(kind);
+			buf.putLong(0); // payload length, set by writeTo
+		}
+
+		private void reserve(long n) {
+			if (buf.remaining() >= n)
+				return;
+			long c = buf.capacity();
+			while (c - buf.position() < n)
+				c *= 2;
+			if (c > Integer.MAX_VALUE - TRAILER_SIZE)
+				throw new IllegalArgumentException("tables too large");
+			ByteBuffer b = ByteBuffer.allocate((int)c).order(ByteOrder.LITTLE_ENDIAN);
+			buf.flip();
+			b.put(buf);
+			buf = b;
+		}
+
+		private void pad() {
+			while ((buf.position() & 3) != 0)
+				buf.put((byte)0);
+		}
+
+		/**
+		 * Writes an int.
+		 */
+		public void writeInt(int v) {
+			reserve(4);
+			buf.putInt(v);
+		}
+
+		/**
+		 * Writes an int array, or -1 for null.
+		 */
+		public void writeInts(int[] a) {
+			if (a == null) {
+				writeInt(-1);
+				return;
+			}
+			reserve(4 + 4L * a.length);
+			buf.putInt(a.length);
+			buf.asIntBuffer().put(a);
+			buf.position(buf.position() + 4 * a.length);
+		}
+
+		/**
+		 * Writes the ints of the given buffer from its position to its limit.
+		 */
+		public void writeInts(IntBuffer a) {
+			a = a.duplicate();
+			reserve(4 + 4L * a.remaining());
+			int n = a.remaining();
+			buf.putInt(n);
+			buf.asIntBuffer().put(a);
+			buf.position(buf.position() + 4 * n);
+		}
+
+		/**
+		 * Writes a char array, or -1 for null.
+		 */
+		public void writeChars(char[] a) {
+			if (a == null) {
+				writeInt(-1);
+				return;
+			}
+			reserve(4 + 2L * a.length + 2);
+			buf.putInt(a.length);
+			buf.asCharBuffer().put(a);
+			buf.position(buf.position() + 2 * a.length);
+			pad();
+		}
+
+		/**
+		 * Writes a boolean array, one byte per element, or -1 for null.
+		 */
+		public void writeBooleans(boolean[] a) {
+			if (a == null) {
+				writeInt(-1);
+				return;
+			}
+			reserve(4 + a.length + 3);
+			buf.putInt(a.length);
+			for (boolean b : a)
+				buf.put(b ? (byte)1 : (byte)0);
+			pad();
+		}
+
+		/**
+		 * Fills in the header, appends the checksum, and writes the file to
+		 * the given stream. The stream is not closed.
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			buf.putLong(12, buf.position() - HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), 0, buf.position());
+			reserve(TRAILER_SIZE);
+			buf.putInt((int)crc.getValue());
+			out.write(buf.array(), 0, buf.position());
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads a file written by {@link Writer} from a heap buffer or a
+	 * memory-mapped file.
+	 */
+	public static final class Reader {
+
+		private final ByteBuffer buf;
+
+		/**
+		 * Checks the header and checksum of the given file and positions
+		 * the reader at the start of the payload.
+		 * <p>
+		 * Complexity: linear in the size of the file, for the checksum.
+		 * @param b the whole file, from position 0 to the limit
+		 * @param kind expected kind of the stored object
+		 * @exception IOException if the file is truncated or corrupt, or is of
+		 *            another format version or kind
+		 */
+		public Reader(ByteBuffer b, int kind) throws IOException {
+			buf = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			buf.position(0);
+			if (buf.limit() < HEADER_SIZE + TRAILER_SIZE || buf.getInt() != MAGIC)
+				throw new IOException("not an automaton table file");
+			int version = buf.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported format version " + version + ", expected " + VERSION);
+			int k = buf.getInt();
+			if (k != kind)
+				throw new IOException("file stores kind " + k + ", expected " + kind);
+			long length = buf.getLong();
+			if (length < 0 || length != buf.limit() - HEADER_SIZE - TRAILER_SIZE)
+				throw new IOException("truncated file");
+			int end = HEADER_SIZE + (int)length;
+			CRC32 crc = new CRC32();
+			if (buf.hasArray())
+				crc.update(buf.array(), buf.arrayOffset(), end);
+			else {
+				byte[] chunk = new byte[65536];
+				ByteBuffer d = buf.duplicate();
+				d.position(0);
+				for (int p = 0; p < end; p += chunk.length) {
+					int n = Math.min(chunk.length, end - p);
+					d.get(chunk, 0, n);
+					crc.update(chunk, 0, n);
+				}
+			}
+			if ((int)crc.getValue() != buf.getInt(end))
+				throw new IOException("checksum mismatch");
+			buf.limit(end);
+		}
+
+		private int readLength() throws IOException {
+			int n = readInt();
+			if (n < -1)
+				throw new IOException("corrupt file");
+			return n;
+		}
+
+		private void check(long bytes) throws IOException {
+			if (bytes > buf.remaining())
+				throw new IOException("corrupt file");
+		}
+
+		private void skipPadding() {
+			buf.position((buf.position() + 3) & ~3);
+		}
+
+		/**
+		 * Reads an int.
+		 */
+		public int readInt() throws IOException {
+			check(4);
+			return buf.getInt();
+		}
+
+		/**
+		 * Reads an int array into the heap.
+		 */
+		public int[] readInts() throws IOException {
+			int n = readLength();
+			if (n == -1)
+				return null;
+			check(4L * n);
+			int[] a = new int[n];
+			buf.asIntBuffer().get(a);
+			buf.position(buf.position() + 4 * n);
+			return a;
+		}
+
+		/**
+		 * Reads an int array as a view of the underlying buffer, without
+		 * copying it. For a memory-mapped file, the ints are read from the
+		 * mapped pages.
+		 */
+		public IntBuffer readIntBuffer() throws IOException {
+			int n = readLength();
+			if (n == -1)
+				return null;
+			check(4L * n);
+			ByteBuffer b = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+			b.limit(4 * n);
+			buf.position(buf.position() + 4 * n);
+			return b.asIntBuffer();
+		}
+
+		/**
+		 * Reads a char array into the heap.
+		 */
+		public char[] readChars() throws IOException {
+			int n = readLength();
+			if (n == -1)
+				return null;
+			check(2L * n);
+			char[] a = new char[n];
+			buf.asCharBuffer().get(a);
+			buf.position(buf.position() + 2 * n);
+			skipPadding();
+			return a;
+		}
+
+		/**
+		 * Reads a boolean array into the heap.
+		 */
+		public boolean[] readBooleans() throws IOException {
+			int n = readLength();
+			if (n == -1)
+				return null;
+			check(n);
+			boolean[] a = new boolean[n];
+			for (int i = 0; i < n; i++)
+				a[i] = buf.get() != 0;
+			skipPadding();
+			return a;
+		}
+
+		/**
+		 * Checks that the whole payload has been read.
+		 */
+		public void finish() throws IOException {
+			if (buf.hasRemaining())
+				throw new IOException("corrupt file");
+		}
+	}
+}
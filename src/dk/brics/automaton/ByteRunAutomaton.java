@@ -0,0 +1,283 @@
+package dk.brics.automaton;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * Finite-state automaton over bytes with fast run operation.
+ * <p>
+ * Same as {@link RunAutomaton}, for automata whose transitions are labeled
+ * with byte values 0-255, such as those returned by
+ * {@link Utf8Operations#toUtf8(Automaton)}. The alphabet table has 256
+ * entries instead of 65536, and the automaton runs directly on byte arrays
+ * and on heap, direct or memory-mapped <code>ByteBuffer</code>s.
+ */
+public class ByteRunAutomaton extends MatchEngine implements Serializable {
+
+	static final long serialVersionUID = 20001;
+
+	int size;
+	boolean[] accept;
+	int initial;
+	int[] transitions; // delta(state,b) = transitions[state*points.length + classmap[b & 0xff]]
+	char[] points; // byte interval start points
+	int[] classmap; // map from byte value to class
+	transient ByteRunAutomaton reverse_search; // Sigma* rev(L), built on first use by AutomatonMatcher
+
+	/**
+	 * Constructs a new <code>ByteRunAutomaton</code> from an automaton over
+	 * bytes. If the given automaton is not deterministic, it is determinized
+	 * first.
+	 * @param a an automaton whose transitions are all within 0-255
+	 * @exception IllegalArgumentException if a transition is labeled with a
+	 *            char above 255
+	 */
+	public ByteRunAutomaton(Automaton a) {
+		a.determinize();
+		Set<State> states = a.getNumberedStates();
+		for (State s : states) {
+			TransitionSet ts = s.transitions;
+			for (int i = 0; i < ts.size; i++)
+				if (ts.max[i] > 0xff)
+					throw new IllegalArgumentException("not an automaton over bytes, see Utf8Operations.toUtf8");
+		}
+		char[] p = a.getStartPoints();
+		// drop the interval above 255, which is never read
+		int n = p.length;
+		while (p[n - 1] > 0xff)
+			n--;
+		points = new char[n];
+		System.arraycopy(p, 0, points, 0, n);
+		initial = a.initial.number;
+		size = states.size();
+		accept = new boolean[size];
+		transitions = new int[size * points.length];
+		for (int i = 0; i < size * points.length; i++)
+			transitions[i] = -1;
+		for (State s : states) {
+			int i = s.number;
+			accept[i] = s.accept;
+			for (int c = 0; c < points.length; c++) {
+				State q = s.step(points[c]);
+				if (q != null)
+					transitions[i * points.length + c] = q.number;
+			}
+		}
+		classmap = new int[256];
+		int c = 0;
+		for (int b = 0; b < 256; b++) {
+			if (c + 1 < points.length && b == points[c + 1])
+				c++;
+			classmap[b] = c;
+		}
+	}
+
+	/**
+	 * Returns number of states in automaton.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns acceptance status for given state.
+	 */
+	public boolean isAccept(int state) {
+		return accept[state];
+	}
+
+	/**
+	 * Returns initial state.
+	 */
+	public int getInitialState() {
+		return initial;
+	}
+
+	/**
+	 * Returns the state obtained by reading the given byte from the given
+	 * state, or -1 if not obtaining any such state.
+	 */
+	public int step(int state, byte b) {
+		return transitions[state * points.length + classmap[b & 0xff]];
+	}
+
+	/**
+	 * Same as {@link #step(int, byte)} for a byte seen as a char, -1 if the
+	 * char is above 255.
+	 */
+	int step(int state, char c) {
+		if (c > 0xff)
+			return -1;
+		return transitions[state * points.length + classmap[c]];
+	}
+
+	/**
+	 * Returns true if the given bytes are accepted by this automaton.
+	 */
+	public boolean run(byte[] b) {
+		return run(b, 0, b.length);
+	}
+
+	/**
+	 * Returns true if <code>b[offset .. offset+length-1]</code> is accepted
+	 * by this automaton.
+	 */
+	public boolean run(byte[] b, int offset, int length) {
+		int p = initial;
+		for (int i = offset, l = offset + length; i < l; i++) {
+			p = step(p, b[i]);
+			if (p == -1)
+				return false;
+		}
+		return accept[p];
+	}
+
+	/**
+	 * Returns true if the bytes of the given buffer from its position to its
+	 * limit are accepted by this automaton. The position is not changed.
+	 */
+	public boolean run(ByteBuffer b) {
+		int p = initial;
+		for (int i = b.position(), l = b.limit(); i < l; i++) {
+			p = step(p, b.get(i));
+			if (p == -1)
+				return false;
+		}
+		return accept[p];
+	}
+
+	/**
+	 * Returns the length of the longest accepted run of the bytes of the
+	 * given buffer starting at the given index, up to its limit.
+	 * @param b the buffer
+	 * @param offset index in <code>b</code> where the run starts
+	 * @return length of the longest accepted run, -1 if no run is accepted
+	 */
+	public int run(ByteBuffer b, int offset) {
+		int p = initial;
+		int l = b.limit();
+		int max = accept[p] ? 0 : -1;
+		for (int i = offset; i < l; i++) {
+			p = step(p, b.get(i));
+			if (p == -1)
+				break;
+			if (accept[p])
+				max = i + 1 - offset;
+		}
+		return max;
+	}
+
+	@Override
+	int longestMatch(CharSequence s, int offset, MatchMemo memo) {
+		int p = initial;
+		int l = s.length();
+		int end = accept[p] ? offset : -1;
+		memo.start(offset);
+		for (int i = offset; i < l; i++) {
+			p = step(p, s.charAt(i));
+			if (p == -1)
+				break;
+			int e = memo.get(i + 1, p);
+			if (e != MatchMemo.ABSENT) {
+				if (e != -1)
+					end = e;
+				break;
+			}
+			memo.add(p);
+			if (accept[p])
+				end = i + 1;
+		}
+		memo.finish(end);
+		return end == -1 ? -1 : end - offset;
+	}
+
+	/**
+	 * Complexity: linear in the length of <code>s</code>, using a single
+	 * backward pass of the automaton for <code>Sigma* reverse(L)</code>.
+	 */
+	@Override
+	BitSet matchStarts(CharSequence s) {
+		ByteRunAutomaton r = getReverseSearchAutomaton();
+		int l = s.length();
+		BitSet starts = new BitSet(l + 1);
+		int p = r.initial;
+		if (r.accept[p])
+			starts.set(l);
+		for (int i = l - 1; i >= 0; i--) {
+			p = r.step(p, s.charAt(i));
+			if (p == -1)
+				break;
+			if (r.accept[p])
+				starts.set(i);
+		}
+		return starts;
+	}
+
+	/**
+	 * Returns a deterministic automaton for <code>Sigma* reverse(L)</code>,
+	 * where <code>Sigma</code> is the set of bytes. Built on first use.
+	 */
+	synchronized ByteRunAutomaton getReverseSearchAutomaton() {
+		if (reverse_search == null) {
+			Automaton a = toAutomaton();
+			SpecialOperations.reverse(a);
+			a.initial.addTransition(new Transition('\u0000', '\u00ff', a.initial));
+			a.minimize();
+			reverse_search = new ByteRunAutomaton(a);
+		}
+		return reverse_search;
+	}
+
+	@Override
+	TaggedAutomaton getTaggedAutomaton() {
+		return null;
+	}
+
+	/**
+	 * Returns an <code>Automaton</code> with the same states and transitions
+	 * as this automaton.
+	 */
+	Automaton toAutomaton() {
+		State[] states = new State[size];
+		for (int n = 0; n < size; n++) {
+			states[n] = new State();
+			states[n].accept = accept[n];
+		}
+		for (int n = 0; n < size; n++)
+			for (int c = 0; c < points.length; c++) {
+				int k = transitions[n * points.length + c];
+				if (k != -1) {
+					char max = (c + 1 < points.length) ? (char)(points[c + 1] - 1) : '\u00ff';
+					states[n].addTransition(new Transition(points[c], max, states[k]));
+				}
+			}
+		Automaton a = new Automaton();
+		a.initial = states[initial];
+		a.deterministic = true;
+		a.reduce();
+		return a;
+	}
+
+	/**
+	 * Creates a new automaton matcher for the given input. Offsets of the
+	 * matches are byte offsets.
+	 * @param s the bytes to search
+	 * @return A new automaton matcher for the given input
+	 */
+	public AutomatonMatcher newMatcher(ByteSequence s) {
+		return new AutomatonMatcher(s, this);
+	}
+
+	/**
+	 * Creates a new automaton matcher for the bytes of the given buffer from
+	 * its position to its limit. Offsets of the matches are relative to the
+	 * position.
+	 * @param b the bytes to search
+	 * @return A new automaton matcher for the given input
+	 */
+	public AutomatonMatcher newMatcher(ByteBuffer b) {
+		return new AutomatonMatcher(new ByteSequence(b), this);
+	}
+}
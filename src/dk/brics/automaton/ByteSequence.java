@@ -0,0 +1,105 @@
+package dk.brics.automaton;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Byte input seen as a character sequence, one char per byte, with values
+ * 0-255. Automata over bytes (see {@link Utf8Operations#toUtf8(Automaton)})
+ * can thereby run on undecoded input through the APIs taking a
+ * <code>CharSequence</code>, such as {@link AutomatonMatcher}, and all
+ * offsets are byte offsets.
+ * <p>
+ * The bytes are read in place from a byte array or from a heap, direct or
+ * memory-mapped <code>ByteBuffer</code>; they are not copied.
+ */
+public final class ByteSequence implements CharSequence {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer bytes;
+	private final int offset;
+	private final int length;
+
+	/**
+	 * Constructs a sequence of all the bytes of the given array.
+	 */
+	public ByteSequence(byte[] b) {
+		this(ByteBuffer.wrap(b), 0, b.length);
+	}
+
+	/**
+	 * Constructs a sequence of <code>b[offset .. offset+length-1]</code>.
+	 * Index 0 of the sequence is <code>b[offset]</code>.
+	 */
+	public ByteSequence(byte[] b, int offset, int length) {
+		this(ByteBuffer.wrap(b), offset, length);
+		if (offset < 0 || length < 0 || offset + length > b.length)
+			throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Constructs a sequence of the bytes of the given buffer from its
+	 * position to its limit. Index 0 of the sequence is the byte at the
+	 * position. Later changes of the position and limit of the buffer do
+	 * not affect the sequence, but changes of its content do.
+	 */
+	public ByteSequence(ByteBuffer b) {
+		this(b.duplicate(), b.position(), b.remaining());
+	}
+
+	private ByteSequence(ByteBuffer bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Returns the number of bytes.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the byte at the given index, as a char from 0 to 255.
+	 */
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException();
+		return (char)(bytes.get(offset + index) & 0xff);
+	}
+
+	/**
+	 * Returns the byte at the given index.
+	 */
+	public byte byteAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException();
+		return bytes.get(offset + index);
+	}
+
+	/**
+	 * Returns a view of the bytes from <code>start</code> to
+	 * <code>end-1</code>, without copying them.
+	 */
+	public ByteSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException();
+		return new ByteSequence(bytes, offset + start, end - start);
+	}
+
+	/**
+	 * Returns the bytes decoded as UTF-8, so that for instance
+	 * {@link AutomatonMatcher#group()} returns the text of the match.
+	 * Unlike for other character sequences, the length of the result is in
+	 * general not the length of this sequence.
+	 */
+	@Override
+	public String toString() {
+		ByteBuffer b = bytes.duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		return UTF_8.decode(b).toString();
+	}
+}
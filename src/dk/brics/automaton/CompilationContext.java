@@ -0,0 +1,215 @@
+package dk.brics.automaton;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settings for the construction of automata: minimization algorithm,
+ * mutation policy, numbering of states and resource limits.
+ * <p>
+ * Operations read the context of the current thread. It is the one given
+ * to methods such as {@link RegExp#toAutomaton(CompilationContext)},
+ * {@link MinimizationOperations#minimize(Automaton, CompilationContext)} or
+ * {@link #call(Callable)} while they run, and otherwise the default
+ * context, whose settings are those of the static setters of
+ * {@link Automaton}. Threads compiling with different contexts thus do not
+ * interfere, and compiling with a new context numbers the states from 0,
+ * so that the result does not depend on what other threads do.
+ * <p>
+ * A context may be used by several threads at once. Changing its settings
+ * while operations use it does not affect those operations consistently.
+ */
+public final class CompilationContext {
+
+	private static final CompilationContext DEFAULT = new CompilationContext();
+
+	private static final ThreadLocal<CompilationContext> current = new ThreadLocal<CompilationContext>();
+
+	// number of threads running with a context, so that the others skip the thread local
+	private static final AtomicInteger nb_entered = new AtomicInteger();
+
+	volatile int minimization = Automaton.MINIMIZE_HOPCROFT;
+	volatile boolean minimize_always;
+	volatile boolean allow_mutation;
+	volatile int max_states = Integer.MAX_VALUE;
+	final AtomicInteger next_state_id;
+
+	/**
+	 * Constructs a context with the default settings (see {@link Automaton}),
+	 * no resource limits, and its own numbering of states.
+	 */
+	public CompilationContext() {
+		next_state_id = new AtomicInteger();
+	}
+
+	/**
+	 * Constructs a context with the settings of the given one, and its own
+	 * numbering of states.
+	 */
+	public CompilationContext(CompilationContext c) {
+		this(c, new AtomicInteger());
+	}
+
+	private CompilationContext(CompilationContext c, AtomicInteger next_state_id) {
+		minimization = c.minimization;
+		minimize_always = c.minimize_always;
+		allow_mutation = c.allow_mutation;
+		max_states = c.max_states;
+		this.next_state_id = next_state_id;
+	}
+
+	/**
+	 * Returns the default context, used by threads not running with another
+	 * one. The static setters of {@link Automaton} change its settings.
+	 */
+	public static CompilationContext getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the context of the current thread.
+	 */
+	public static CompilationContext current() {
+		if (nb_entered.get() == 0)
+			return DEFAULT;
+		CompilationContext c = current.get();
+		return (c != null) ? c : DEFAULT;
+	}
+
+	/**
+	 * Returns a context with the settings of this one and the given mutation
+	 * policy, sharing its numbering of states.
+	 */
+	CompilationContext withAllowMutate(boolean flag) {
+		if (allow_mutation == flag)
+			return this;
+		CompilationContext c = new CompilationContext(this, next_state_id);
+		c.allow_mutation = flag;
+		return c;
+	}
+
+	/**
+	 * Makes this context the one of the current thread.
+	 * @return the previous context of the thread, to be given to {@link #exit(CompilationContext)}
+	 */
+	CompilationContext enter() {
+		CompilationContext previous = current.get();
+		if (previous == null)
+			nb_entered.incrementAndGet();
+		current.set(this);
+		return previous;
+	}
+
+	/**
+	 * Restores the context of the current thread returned by {@link #enter()}.
+	 */
+	static void exit(CompilationContext previous) {
+		if (previous == null) {
+			current.remove();
+			nb_entered.decrementAndGet();
+		} else
+			current.set(previous);
+	}
+
+	/**
+	 * Runs the given task in the current thread with this context.
+	 */
+	public void run(Runnable task) {
+		CompilationContext previous = enter();
+		try {
+			task.run();
+		} finally {
+			exit(previous);
+		}
+	}
+
+	/**
+	 * Calls the given task in the current thread with this context.
+	 * @return the result of the task
+	 * @exception Exception if the task throws one
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		CompilationContext previous = enter();
+		try {
+			return task.call();
+		} finally {
+			exit(previous);
+		}
+	}
+
+	/**
+	 * Selects minimization algorithm (default: <code>MINIMIZE_HOPCROFT</code>).
+	 * @see Automaton#setMinimization(int)
+	 */
+	public void setMinimization(int algorithm) {
+		minimization = algorithm;
+	}
+
+	/**
+	 * Returns the minimization algorithm.
+	 */
+	public int getMinimization() {
+		return minimization;
+	}
+
+	/**
+	 * Sets or resets minimize always flag (default: not set).
+	 * @see Automaton#setMinimizeAlways(boolean)
+	 */
+	public void setMinimizeAlways(boolean flag) {
+		minimize_always = flag;
+	}
+
+	/**
+	 * Returns the minimize always flag.
+	 */
+	public boolean getMinimizeAlways() {
+		return minimize_always;
+	}
+
+	/**
+	 * Sets or resets allow mutate flag (default: not set). If this flag is
+	 * set, then operations may modify the automata given as input.
+	 * @see Automaton#setAllowMutate(boolean)
+	 */
+	public void setAllowMutate(boolean flag) {
+		allow_mutation = flag;
+	}
+
+	/**
+	 * Returns the allow mutate flag.
+	 */
+	public boolean getAllowMutate() {
+		return allow_mutation;
+	}
+
+	/**
+	 * Sets the maximum number of states of an automaton built by
+	 * determinization (default: no limit). Determinizing an automaton whose
+	 * deterministic version has more states throws an
+	 * <code>IllegalArgumentException</code>, instead of running out of time
+	 * or memory on an untrusted pattern.
+	 */
+	public void setMaxStates(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max must be positive");
+		max_states = max;
+	}
+
+	/**
+	 * Returns the maximum number of states of an automaton built by
+	 * determinization.
+	 */
+	public int getMaxStates() {
+		return max_states;
+	}
+
+	/**
+	 * Returns the number of states constructed with this context so far,
+	 * which is the number given to the next one. States are ordered by this
+	 * number (see {@link State#compareTo(State)}).
+	 */
+	public int getStateCount() {
+		return next_state_id.get();
+	}
+}
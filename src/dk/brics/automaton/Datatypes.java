@@ -33,10 +33,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Basic automata for representing common datatypes related to Unicode, XML, and
@@ -48,6 +50,12 @@ final public class Datatypes {
 
 	private static final Automaton ws;
 
+	private static final boolean lazy; // Automaton.loadAllBuiltins not set at initialization
+
+	private static final AtomicInteger built_count = new AtomicInteger();
+
+	private static final AtomicLong build_nanos = new AtomicLong();
+
 	private static final Set<String> unicodeblock_names;
 
 	private static final Set<String> unicodecategory_names;
@@ -84,14 +92,30 @@ final public class Datatypes {
 			"NCNames", "QName2", "Nmtoken2", "Nmtokens", "Name2", "Names", "language" };
 
 	static {
-		automata = new HashMap<String, Automaton>();
-		ws = Automaton.minimize(Automaton.makeCharSet(" \t\n\r").repeat());
+		automata = new ConcurrentHashMap<String, Automaton>();
+		// the builtins are shared by all contexts
+		CompilationContext previous = CompilationContext.getDefault().enter();
+		try {
+			ws = Automaton.minimize(Automaton.makeCharSet(" \t\n\r").repeat()).freeze();
+		} finally {
+			CompilationContext.exit(previous);
+		}
 		unicodeblock_names = new HashSet<String>(Arrays.asList(unicodeblock_names_array));
 		unicodecategory_names = new HashSet<String>(Arrays.asList(unicodecategory_names_array));
 		xml_names = new HashSet<String>(Arrays.asList(xml_names_array));
 
-		if (Automaton.loadAllBuiltins)
-			buildAll();
+		lazy = !Automaton.loadAllBuiltins;
+		if (!lazy) {
+			long t = System.nanoTime();
+			previous = CompilationContext.getDefault().enter();
+			try {
+				buildAll();
+			} finally {
+				CompilationContext.exit(previous);
+			}
+			build_nanos.addAndGet(System.nanoTime() - t);
+			built_count.set(automata.size());
+		}
 	}
 
 	private Datatypes() {
@@ -1093,28 +1117,64 @@ final public class Datatypes {
 	 * </tr>
 	 * </table>
 	 * <p>
-	 * Loaded automata are cached in memory.
+	 * Loaded automata are cached in memory and frozen (see
+	 * {@link Automaton#freeze()}), so that they are shared by all threads
+	 * and by all regular expressions using them without being copied. If
+	 * {@link Automaton#loadAllBuiltins} is set when this class is
+	 * initialized, all automata are built then; otherwise, each automaton is
+	 * built the first time it is requested, and only that automaton. Both
+	 * ways, this method is thread safe.
 	 * 
 	 * @param name
 	 *            name of automaton
-	 * @return automaton
+	 * @return automaton, or null if there is no automaton of that name
 	 */
 	public static Automaton get(String name) {
 
 		Automaton a = automata.get(name);
-		if (a == null && !Automaton.loadAllBuiltins) {
+		if (a == null && lazy) {
 			synchronized (automata) {
 				a = automata.get(name);
 				if (a == null) {
-					a = load(name);
-					automata.put(name, a);
+					long t = System.nanoTime();
+					// the builtins are shared by all contexts
+					CompilationContext previous = CompilationContext.getDefault().enter();
+					try {
+						a = build(name);
+						if (a == null)
+							a = load(name);
+						if (a != null)
+							a.freeze();
+					} finally {
+						CompilationContext.exit(previous);
+					}
+					if (a != null) {
+						automata.put(name, a);
+						build_nanos.addAndGet(System.nanoTime() - t);
+						built_count.incrementAndGet();
+					}
 				}
 			}
-			return a;
 		}
 		return a;
 	}
 
+	/**
+	 * Returns the number of automata built so far.
+	 */
+	public static int getBuiltCount() {
+		return built_count.get();
+	}
+
+	/**
+	 * Returns the total time spent building automata so far, in
+	 * nanoseconds. If {@link Automaton#loadAllBuiltins} is set, this is the
+	 * time of building all automata at initialization.
+	 */
+	public static long getBuildNanos() {
+		return build_nanos.get();
+	}
+
 	/**
 	 * Checks whether the given string is the name of a Unicode block (see
 	 * {@link #get(String)}).
@@ -1139,12 +1199,16 @@ final public class Datatypes {
 		return xml_names.contains(name);
 	}
 
+	/**
+	 * Returns the frozen automaton of the strings of whitespace chars
+	 * (space, tab, line feed and carriage return).
+	 */
 	public static Automaton getWhitespaceAutomaton() {
 		return ws;
 	}
 
 	private static void put(Map<String, Automaton> map, String name, Automaton a) {
-		map.put(name, a);
+		map.put(name, a.freeze());
 		// System.out.println(" " + name + ": " + a.getNumberOfStates() + "
 		// states, " + a.getNumberOfTransitions() + " transitions");
 	}
@@ -10133,9 +10197,15 @@ final public class Datatypes {
 		return Automaton.load(state0, true, null);
 	}
 
+	/**
+	 * Loads a serialized automaton from the resource <tt>aut/<i>name</i>.aut</tt>,
+	 * or returns null if there is no such resource.
+	 */
 	private static Automaton load(String name) {
 		try {
 			URL url = Datatypes.class.getClassLoader().getResource("aut/" + name + ".aut");
+			if (url == null)
+				return null;
 			return Automaton.load(url.openStream());
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -10355,6 +10425,388 @@ final public class Datatypes {
 		put(automata, "_vertical", getAut148());
 		put(automata, "_word", getAut149());
 	}
+	/**
+	 * Builds the automaton of the given name, as {@link #buildAll()} does, or
+	 * returns null if there is no such builtin automaton.
+	 */
+	private static Automaton build(String name) {
+		switch (name) {
+		case "AlphabeticPresentationForms":
+			return getAut1();
+		case "Arabic":
+			return getAut2();
+		case "ArabicPresentationForms-A":
+			return getAut3();
+		case "ArabicPresentationForms-B":
+			return getAut4();
+		case "Armenian":
+			return getAut5();
+		case "Arrows":
+			return getAut6();
+		case "BasicLatin":
+			return getAut7();
+		case "Bengali":
+			return getAut8();
+		case "BlockElements":
+			return getAut9();
+		case "Bopomofo":
+			return getAut10();
+		case "BopomofoExtended":
+			return getAut11();
+		case "BoxDrawing":
+			return getAut12();
+		case "BraillePatterns":
+			return getAut13();
+		case "ByzantineMusicalSymbols":
+			return getAut14();
+		case "C":
+		case "Other":
+			return getAut15();
+		case "CJKCompatibility":
+			return getAut16();
+		case "CJKCompatibilityForms":
+			return getAut17();
+		case "CJKCompatibilityIdeographs":
+			return getAut18();
+		case "CJKCompatibilityIdeographsSupplement":
+			return getAut19();
+		case "CJKRadicalsSupplement":
+			return getAut20();
+		case "CJKSymbolsandPunctuation":
+			return getAut21();
+		case "CJKUnifiedIdeographs":
+			return getAut22();
+		case "CJKUnifiedIdeographsExtensionA":
+			return getAut23();
+		case "CJKUnifiedIdeographsExtensionB":
+			return getAut24();
+		case "Cc":
+			return getAut25();
+		case "Cf":
+			return getAut26();
+		case "Char":
+			return getAut27();
+		case "Cherokee":
+			return getAut28();
+		case "Cn":
+			return getAut29();
+		case "Co":
+			return getAut30();
+		case "CombiningDiacriticalMarks":
+			return getAut31();
+		case "CombiningHalfMarks":
+			return getAut32();
+		case "CombiningMarksforSymbols":
+			return getAut33();
+		case "ControlPictures":
+			return getAut34();
+		case "Cs":
+			return getAut35();
+		case "CurrencySymbols":
+			return getAut36();
+		case "Cyrillic":
+			return getAut37();
+		case "Deseret":
+			return getAut38();
+		case "Devanagari":
+			return getAut39();
+		case "Dingbats":
+			return getAut40();
+		case "EnclosedAlphanumerics":
+			return getAut41();
+		case "EnclosedCJKLettersandMonths":
+			return getAut42();
+		case "Ethiopic":
+			return getAut43();
+		case "GeneralPunctuation":
+			return getAut44();
+		case "GeometricShapes":
+			return getAut45();
+		case "Georgian":
+			return getAut46();
+		case "Gothic":
+			return getAut47();
+		case "Greek":
+			return getAut48();
+		case "GreekExtended":
+			return getAut49();
+		case "Gujarati":
+			return getAut50();
+		case "Gurmukhi":
+			return getAut51();
+		case "HalfwidthandFullwidthForms":
+			return getAut52();
+		case "HangulCompatibilityJamo":
+			return getAut53();
+		case "HangulJamo":
+			return getAut54();
+		case "HangulSyllables":
+			return getAut55();
+		case "Hebrew":
+			return getAut56();
+		case "Hiragana":
+			return getAut57();
+		case "IPAExtensions":
+			return getAut58();
+		case "IdeographicDescriptionCharacters":
+			return getAut59();
+		case "Kanbun":
+			return getAut60();
+		case "KangxiRadicals":
+			return getAut61();
+		case "Kannada":
+			return getAut62();
+		case "Katakana":
+			return getAut63();
+		case "Khmer":
+			return getAut64();
+		case "L":
+			return getAut65();
+		case "Lao":
+			return getAut66();
+		case "Latin-1Supplement":
+			return getAut67();
+		case "LatinExtended-A":
+			return getAut68();
+		case "LatinExtended-B":
+			return getAut69();
+		case "LatinExtendedAdditional":
+			return getAut70();
+		case "Letter":
+			return getAut71();
+		case "LetterlikeSymbols":
+			return getAut72();
+		case "Ll":
+			return getAut73();
+		case "Lm":
+			return getAut74();
+		case "Lo":
+			return getAut75();
+		case "Lt":
+			return getAut76();
+		case "Lu":
+			return getAut77();
+		case "M":
+		case "Mark":
+			return getAut78();
+		case "Malayalam":
+			return getAut79();
+		case "MathematicalAlphanumericSymbols":
+			return getAut80();
+		case "MathematicalOperators":
+			return getAut81();
+		case "Mc":
+			return getAut82();
+		case "Me":
+			return getAut83();
+		case "MiscellaneousSymbols":
+			return getAut84();
+		case "MiscellaneousTechnical":
+			return getAut85();
+		case "Mn":
+			return getAut86();
+		case "Mongolian":
+			return getAut87();
+		case "MusicalSymbols":
+			return getAut88();
+		case "Myanmar":
+			return getAut89();
+		case "N":
+		case "Number":
+			return getAut90();
+		case "NCName":
+			return getAut91();
+		case "NCName2":
+			return getAut92();
+		case "NCNames":
+			return getAut93();
+		case "Name2":
+			return getAut94();
+		case "NameChar":
+			return getAut95();
+		case "Names":
+			return getAut96();
+		case "Nd":
+			return getAut97();
+		case "Nl":
+			return getAut98();
+		case "Nmtoken2":
+			return getAut99();
+		case "Nmtokens":
+			return getAut100();
+		case "No":
+			return getAut101();
+		case "NumberForms":
+			return getAut102();
+		case "Ogham":
+			return getAut103();
+		case "OldItalic":
+			return getAut104();
+		case "OpticalCharacterRecognition":
+			return getAut105();
+		case "Oriya":
+			return getAut106();
+		case "P":
+		case "Punctuation":
+			return getAut107();
+		case "Pc":
+			return getAut108();
+		case "Pd":
+			return getAut109();
+		case "Pe":
+			return getAut110();
+		case "Pf":
+			return getAut111();
+		case "Pi":
+			return getAut112();
+		case "Po":
+			return getAut113();
+		case "PrivateUse":
+			return getAut114();
+		case "Ps":
+			return getAut115();
+		case "QName":
+			return getAut116();
+		case "QName2":
+			return getAut117();
+		case "Runic":
+			return getAut118();
+		case "S":
+		case "Symbol":
+			return getAut119();
+		case "Sc":
+			return getAut120();
+		case "Sinhala":
+			return getAut121();
+		case "Sk":
+			return getAut122();
+		case "Sm":
+			return getAut123();
+		case "SmallFormVariants":
+			return getAut124();
+		case "So":
+			return getAut125();
+		case "SpacingModifierLetters":
+			return getAut126();
+		case "Specials":
+			return getAut127();
+		case "SuperscriptsandSubscripts":
+			return getAut128();
+		case "Syriac":
+			return getAut129();
+		case "Tags":
+			return getAut130();
+		case "Tamil":
+			return getAut131();
+		case "Telugu":
+			return getAut132();
+		case "Thaana":
+			return getAut133();
+		case "Thai":
+			return getAut134();
+		case "Tibetan":
+			return getAut135();
+		case "URI":
+			return getAut136();
+		case "UnifiedCanadianAboriginalSyllabics":
+			return getAut137();
+		case "YiRadicals":
+			return getAut138();
+		case "YiSyllables":
+			return getAut139();
+		case "Z":
+		case "Separator":
+			return getAut140();
+		case "Zl":
+			return getAut141();
+		case "Zp":
+			return getAut142();
+		case "Zs":
+			return getAut143();
+		case "_digit":
+			return getAut144();
+		case "_horizontal":
+			return getAut145();
+		case "_linebreak":
+			return getAut146();
+		case "_space":
+			return getAut147();
+		case "_vertical":
+			return getAut148();
+		case "_word":
+			return getAut149();
+		case "anyname":
+			return getAut150();
+		case "base64Binary":
+			return getAut151();
+		case "boolean":
+			return getAut152();
+		case "byte":
+			return getAut153();
+		case "date":
+			return getAut154();
+		case "dateTime":
+			return getAut155();
+		case "decimal":
+			return getAut156();
+		case "duration":
+			return getAut157();
+		case "float":
+			return getAut158();
+		case "gDay":
+			return getAut159();
+		case "gMonth":
+			return getAut160();
+		case "gMonthDay":
+			return getAut161();
+		case "gYear":
+			return getAut162();
+		case "gYearMonth":
+			return getAut163();
+		case "hexBinary":
+			return getAut164();
+		case "int":
+			return getAut165();
+		case "integer":
+			return getAut166();
+		case "language":
+			return getAut167();
+		case "long":
+			return getAut168();
+		case "negativeInteger":
+			return getAut169();
+		case "noap":
+			return getAut170();
+		case "nonNegativeInteger":
+			return getAut171();
+		case "nonPositiveInteger":
+			return getAut172();
+		case "positiveInteger":
+			return getAut173();
+		case "short":
+			return getAut174();
+		case "string":
+			return getAut175();
+		case "time":
+			return getAut176();
+		case "unsignedByte":
+			return getAut177();
+		case "unsignedInt":
+			return getAut178();
+		case "unsignedLong":
+			return getAut179();
+		case "unsignedShort":
+			return getAut180();
+		case "whitespace":
+			return getAut181();
+		case "whitespacechar":
+			return getAut182();
+		default:
+			return null;
+		}
+	}
+
+
 
 	public static void main(String[] args) {
 		long t = System.currentTimeMillis();
@@ -0,0 +1,94 @@
+package dk.brics.automaton;
+
+/**
+ * Statistics of a subset construction, filled in by
+ * {@link BasicOperations#determinize(Automaton, DeterminizeStats)}.
+ */
+public class DeterminizeStats {
+
+	int nfa_states;
+	int nfa_transitions;
+	int points;
+	int dfa_states;
+	int dfa_transitions;
+	int max_subset;
+	long subset_elements;
+	long nanos;
+
+	/**
+	 * Constructs a new empty statistics object.
+	 */
+	public DeterminizeStats() {}
+
+	/**
+	 * Returns the number of states of the nondeterministic automaton
+	 * reachable from the initial states.
+	 */
+	public int getNfaStates() {
+		return nfa_states;
+	}
+
+	/**
+	 * Returns the number of transitions of the nondeterministic automaton.
+	 */
+	public int getNfaTransitions() {
+		return nfa_transitions;
+	}
+
+	/**
+	 * Returns the number of char interval start points.
+	 */
+	public int getPoints() {
+		return points;
+	}
+
+	/**
+	 * Returns the number of constructed deterministic states, before dead
+	 * states are removed.
+	 */
+	public int getDfaStates() {
+		return dfa_states;
+	}
+
+	/**
+	 * Returns the number of constructed deterministic transitions, before
+	 * dead transitions are removed.
+	 */
+	public int getDfaTransitions() {
+		return dfa_transitions;
+	}
+
+	/**
+	 * Returns the size of the largest subset.
+	 */
+	public int getMaxSubset() {
+		return max_subset;
+	}
+
+	/**
+	 * Returns the total size of all subsets, which is the memory used for
+	 * them in ints.
+	 */
+	public long getSubsetElements() {
+		return subset_elements;
+	}
+
+	/**
+	 * Returns the construction time in nanoseconds, including removal of
+	 * dead transitions.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Returns a string describing the statistics.
+	 */
+	@Override
+	public String toString() {
+		return "nfa states=" + nfa_states + " transitions=" + nfa_transitions + " points=" + points
+			+ ", dfa states=" + dfa_states + " transitions=" + dfa_transitions
+			+ ", subsets max=" + max_subset + " total=" + subset_elements
+			+ ", " + (nanos / 1000) + "us";
+	}
+}
@@ -1,5 +1,8 @@
 package dk.brics.automaton;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -22,4 +25,83 @@ public class DkBricsAutomatonHelper {
         }
         return pointsArr;
     }
+
+    /**
+     * Minimizes a deterministic transition table.
+     *
+     * The table has one row of stride entries per state, holding the
+     * destination state for each char class, or -1 if there is none.
+     * States with different classes (typically, different accept sets)
+     * are never merged. All states are assumed to be reachable from state 0.
+     *
+     * Runs in O(m log n) for m transitions, see
+     * {@link MinimizationOperations#minimizeValmari(Automaton)}.
+     *
+     * @return for each state, its state in the minimized table. State 0
+     *         stays state 0, and the other states are numbered in order
+     *         of their first member.
+     */
+    public static int[] minimizeTable(final int[] transitions,
+                                      final int stride,
+                                      final int[] stateClasses,
+                                      final int nbClasses) {
+        final int nbStates = stateClasses.length;
+        int m = 0;
+        for (final int dest: transitions) {
+            if (dest != -1) {
+                m++;
+            }
+        }
+        final int[] tail = new int[m];
+        final int[] label = new int[m];
+        final int[] head = new int[m];
+        m = 0;
+        for (int state=0; state<nbStates; state++) {
+            for (int c=0; c<stride; c++) {
+                final int dest = transitions[state * stride + c];
+                if (dest != -1) {
+                    tail[m] = state;
+                    label[m] = c;
+                    head[m] = dest;
+                    m++;
+                }
+            }
+        }
+        final MinimizationOperations.Partition blocks = new MinimizationOperations.Partition(nbStates, stateClasses, nbClasses);
+        MinimizationOperations.refine(blocks, stride, m, tail, label, head);
+        final int[] blockId = new int[blocks.z];
+        Arrays.fill(blockId, -1);
+        final int[] stateMapping = new int[nbStates];
+        int nbBlocks = 0;
+        for (int state=0; state<nbStates; state++) {
+            final int block = blocks.set[state];
+            if (blockId[block] == -1) {
+                blockId[block] = nbBlocks++;
+            }
+            stateMapping[state] = blockId[block];
+        }
+        return stateMapping;
+    }
+
+    /**
+     * Writes the tables of a RunAutomaton as part of a larger file.
+     */
+    public static void writeRunAutomaton(final BinaryTables.Writer writer, final RunAutomaton automaton) {
+        automaton.write(writer);
+    }
+
+    /**
+     * Reads a RunAutomaton written by {@link #writeRunAutomaton}.
+     *
+     * @param inPlace if true, its transition table is a view of the
+     *                reader's buffer instead of a copy.
+     * @param classmaps alphabet tables of the automata read before from
+     *                  the same file, shared by automata with the same
+     *                  char intervals. May be null.
+     */
+    public static RunAutomaton readRunAutomaton(final BinaryTables.Reader reader,
+                                                final boolean inPlace,
+                                                final Map<String, int[]> classmaps) throws IOException {
+        return RunAutomaton.read(reader, inPlace, classmaps);
+    }
 }
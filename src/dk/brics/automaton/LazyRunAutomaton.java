@@ -0,0 +1,390 @@
+package dk.brics.automaton;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Finite-state automaton that is determinized while it runs.
+ * <p>
+ * Unlike {@link RunAutomaton}, the automaton is not determinized up front.
+ * Deterministic states (sets of states of the given automaton) are only
+ * constructed when the input reaches them, and are kept in a cache of
+ * bounded size. When the cache is full, it is flushed and filled again from
+ * the current state. The construction cost is thus proportional to the input
+ * actually read, and memory is bounded, also for automata whose deterministic
+ * version would be very large.
+ * <p>
+ * Calls are synchronized on the automaton, since running it updates the
+ * cache.
+ */
+public class LazyRunAutomaton extends MatchEngine {
+
+	/**
+	 * Default maximum number of cached deterministic states.
+	 */
+	public static final int DEFAULT_MAX_STATES = 1024;
+
+	static final int UNKNOWN = -2;
+
+	// nondeterministic automaton, transitions on char classes
+	int size;
+	int initial;
+	boolean[] accept;
+	int[] first; // transitions of state s are first[s] .. first[s + 1] - 1
+	int[] from; // first char class of transition
+	int[] to; // last char class of transition
+	int[] dest;
+	char[] points; // char interval start points
+	int[] classmap; // map from char number to class
+
+	// cache of deterministic states
+	int max_states;
+	int count;
+	int[][] subsets; // sorted states of the nondeterministic automaton
+	boolean[] subset_accept;
+	int[][] transitions; // successor for each char class, -1 if dead, UNKNOWN if not yet computed
+	HashMap<Subset, Integer> index;
+	int start; // cached initial state, -1 if not in the cache
+	int flushes;
+
+	// scratch space for computing successors
+	int[] mark;
+	int generation;
+	int[] buffer;
+
+	transient LazyRunAutomaton reverse_search; // Sigma* rev(L), built on first use by AutomatonMatcher
+
+	/**
+	 * Constructs a new <code>LazyRunAutomaton</code> from an
+	 * <code>Automaton</code>. Same as
+	 * <code>LazyRunAutomaton(a, DEFAULT_MAX_STATES)</code>.
+	 * @param a an automaton
+	 */
+	public LazyRunAutomaton(Automaton a) {
+		this(a, DEFAULT_MAX_STATES);
+	}
+
+	/**
+	 * Constructs a new <code>LazyRunAutomaton</code> from an
+	 * <code>Automaton</code>, which need not be deterministic. Dead
+	 * transitions are removed from the given automaton, but it is not
+	 * determinized.
+	 * <p>
+	 * Complexity: linear in number of states and transitions of <code>a</code>.
+	 * @param a an automaton
+	 * @param max_states maximum number of deterministic states kept in the cache
+	 */
+	public LazyRunAutomaton(Automaton a, int max_states) {
+		if (max_states < 1)
+			throw new IllegalArgumentException("max_states must be positive");
+		a.removeDeadTransitions();
+		points = a.getStartPoints();
+		classmap = makeClassmap(points);
+		Set<State> states = a.getNumberedStates();
+		size = states.size();
+		initial = a.initial.number;
+		accept = new boolean[size];
+		first = new int[size + 1];
+		int n = 0;
+		for (State s : states)
+			n += s.transitions.size();
+		from = new int[n];
+		to = new int[n];
+		dest = new int[n];
+		State[] numbered = new State[size];
+		for (State s : states)
+			numbered[s.number] = s;
+		n = 0;
+		for (int i = 0; i < size; i++) {
+			State s = numbered[i];
+			accept[i] = s.accept;
+			first[i] = n;
+			for (Transition t : s.transitions) {
+				from[n] = classmap[t.min - Character.MIN_VALUE];
+				to[n] = classmap[t.max - Character.MIN_VALUE];
+				dest[n] = t.to.number;
+				n++;
+			}
+		}
+		first[size] = n;
+		this.max_states = max_states;
+		subsets = new int[max_states][];
+		subset_accept = new boolean[max_states];
+		transitions = new int[max_states][];
+		index = new HashMap<Subset, Integer>();
+		start = -1;
+		mark = new int[size];
+		buffer = new int[size];
+	}
+
+	/**
+	 * Returns number of states in the (nondeterministic) automaton.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of times the state cache has been flushed.
+	 */
+	public synchronized int getFlushCount() {
+		return flushes;
+	}
+
+	/**
+	 * Returns the cached deterministic state for the initial state.
+	 */
+	int getInitialState() {
+		if (start == -1)
+			start = lookup(new int[] {initial});
+		return start;
+	}
+
+	/**
+	 * Returns the state obtained by reading a char of the given class from
+	 * the given state, or -1 for the dead state. The returned state is valid
+	 * even if the cache was flushed to make room for it, but all other states
+	 * are then invalid.
+	 */
+	int step(int p, int c) {
+		int q = transitions[p][c];
+		if (q != UNKNOWN)
+			return q;
+		if (++generation == 0) {
+			Arrays.fill(mark, 0);
+			generation = 1;
+		}
+		int n = 0;
+		for (int s : subsets[p])
+			for (int j = first[s]; j < first[s + 1]; j++)
+				if (from[j] <= c && c <= to[j] && mark[dest[j]] != generation) {
+					mark[dest[j]] = generation;
+					buffer[n++] = dest[j];
+				}
+		if (n == 0)
+			q = -1;
+		else {
+			Arrays.sort(buffer, 0, n);
+			int f = flushes;
+			q = lookup(Arrays.copyOf(buffer, n));
+			if (f != flushes)
+				return q; // p is gone
+		}
+		transitions[p][c] = q;
+		return q;
+	}
+
+	/**
+	 * Returns the cached state for the given set of states, adding it (and
+	 * flushing the cache if it is full) if not present.
+	 */
+	private int lookup(int[] subset) {
+		Subset key = new Subset(subset);
+		Integer k = index.get(key);
+		if (k != null)
+			return k;
+		if (count == max_states)
+			flush();
+		int p = count++;
+		subsets[p] = subset;
+		boolean b = false;
+		for (int s : subset)
+			if (accept[s]) {
+				b = true;
+				break;
+			}
+		subset_accept[p] = b;
+		if (transitions[p] == null)
+			transitions[p] = new int[points.length];
+		Arrays.fill(transitions[p], UNKNOWN);
+		index.put(key, p);
+		return p;
+	}
+
+	private void flush() {
+		index.clear();
+		count = 0;
+		start = -1;
+		flushes++;
+	}
+
+	/**
+	 * Returns true if the given string is accepted by this automaton.
+	 */
+	public synchronized boolean run(String s) {
+		int p = getInitialState();
+		int l = s.length();
+		for (int i = 0; i < l; i++) {
+			p = step(p, classmap[s.charAt(i) - Character.MIN_VALUE]);
+			if (p == -1)
+				return false;
+		}
+		return subset_accept[p];
+	}
+
+	/**
+	 * Returns the length of the longest accepted run of the given string
+	 * starting at the given offset.
+	 * @param s the string
+	 * @param offset offset into <code>s</code> where the run starts
+	 * @return length of the longest accepted run, -1 if no run is accepted
+	 */
+	public synchronized int run(String s, int offset) {
+		int p = getInitialState();
+		int l = s.length();
+		int max = subset_accept[p] ? 0 : -1;
+		for (int i = offset; i < l; i++) {
+			p = step(p, classmap[s.charAt(i) - Character.MIN_VALUE]);
+			if (p == -1)
+				break;
+			if (subset_accept[p])
+				max = i + 1 - offset;
+		}
+		return max;
+	}
+
+	/**
+	 * The memo is cleared when the cache is flushed, since the states are
+	 * then renumbered.
+	 */
+	@Override
+	synchronized int longestMatch(CharSequence s, int offset, MatchMemo memo) {
+		int p = getInitialState();
+		memo.check(flushes);
+		int l = s.length();
+		int end = subset_accept[p] ? offset : -1;
+		memo.start(offset);
+		for (int i = offset; i < l; i++) {
+			p = step(p, classmap[s.charAt(i) - Character.MIN_VALUE]);
+			if (p == -1)
+				break;
+			memo.check(flushes);
+			int e = memo.get(i + 1, p);
+			if (e != MatchMemo.ABSENT) {
+				if (e != -1)
+					end = e;
+				break;
+			}
+			memo.add(p);
+			if (subset_accept[p])
+				end = i + 1;
+		}
+		memo.finish(end);
+		return end == -1 ? -1 : end - offset;
+	}
+
+	@Override
+	BitSet matchStarts(CharSequence s) {
+		return getReverseSearchAutomaton().acceptedReversed(s);
+	}
+
+	@Override
+	TaggedAutomaton getTaggedAutomaton() {
+		return null;
+	}
+
+	/**
+	 * Returns the offsets <code>i</code> where the string from <code>i</code>
+	 * to the end of <code>s</code>, read backwards, is accepted.
+	 */
+	synchronized BitSet acceptedReversed(CharSequence s) {
+		int l = s.length();
+		BitSet starts = new BitSet(l + 1);
+		int p = getInitialState();
+		if (subset_accept[p])
+			starts.set(l);
+		for (int i = l - 1; i >= 0; i--) {
+			p = step(p, classmap[s.charAt(i) - Character.MIN_VALUE]);
+			if (p == -1)
+				break;
+			if (subset_accept[p])
+				starts.set(i);
+		}
+		return starts;
+	}
+
+	/**
+	 * Returns a lazily determinized automaton for
+	 * <code>Sigma* reverse(L)</code>, where <code>L</code> is the language of
+	 * this automaton. Built on first use.
+	 */
+	synchronized LazyRunAutomaton getReverseSearchAutomaton() {
+		if (reverse_search == null) {
+			Automaton a = toAutomaton();
+			SpecialOperations.reverseSearch(a);
+			reverse_search = new LazyRunAutomaton(a, max_states);
+		}
+		return reverse_search;
+	}
+
+	/**
+	 * Returns an <code>Automaton</code> with the same states and transitions
+	 * as the nondeterministic automaton.
+	 */
+	Automaton toAutomaton() {
+		State[] states = new State[size];
+		for (int n = 0; n < size; n++) {
+			states[n] = new State();
+			states[n].accept = accept[n];
+		}
+		for (int n = 0; n < size; n++)
+			for (int j = first[n]; j < first[n + 1]; j++) {
+				char max;
+				if (to[j] + 1 < points.length)
+					max = (char)(points[to[j] + 1] - 1);
+				else
+					max = Character.MAX_VALUE;
+				states[n].addTransition(new Transition(points[from[j]], max, states[dest[j]]));
+			}
+		Automaton a = new Automaton();
+		a.initial = states[initial];
+		a.deterministic = false;
+		return a;
+	}
+
+	/**
+	 * Creates a new automaton matcher for the given input.
+	 * @param s the CharSequence to search
+	 * @return A new automaton matcher for the given input
+	 */
+	public AutomatonMatcher newMatcher(CharSequence s) {
+		return new AutomatonMatcher(s, this);
+	}
+
+	/**
+	 * Creates a new automaton matcher for the given input.
+	 * @param s the CharSequence to search
+	 * @param startOffset the starting offset of the given character sequence
+	 * @param endOffset the ending offset of the given character sequence
+	 * @return A new automaton matcher for the given input
+	 */
+	public AutomatonMatcher newMatcher(CharSequence s, int startOffset, int endOffset) {
+		return new AutomatonMatcher(s.subSequence(startOffset, endOffset), this);
+	}
+
+	/**
+	 * Set of states of the nondeterministic automaton, as hash key.
+	 */
+	static final class Subset {
+
+		final int[] states;
+		final int hash;
+
+		Subset(int[] states) {
+			this.states = states;
+			hash = Arrays.hashCode(states);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Subset && Arrays.equals(states, ((Subset)obj).states);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
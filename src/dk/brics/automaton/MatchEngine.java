@@ -0,0 +1,61 @@
+package dk.brics.automaton;
+
+import java.util.BitSet;
+
+/**
+ * Operations used by {@link AutomatonMatcher} to search the input,
+ * implemented by {@link RunAutomaton} and {@link LazyRunAutomaton}.
+ */
+abstract class MatchEngine {
+
+	/**
+	 * Returns the length of the longest accepted run of the given character
+	 * sequence starting at the given offset. Stops reading as soon as the
+	 * dead state is entered, or as soon as a pair (offset, state) recorded
+	 * in the given memo by an earlier run is reached, and records the pairs
+	 * of this run.
+	 * @return length of the longest accepted run, -1 if no run is accepted
+	 */
+	abstract int longestMatch(CharSequence s, int offset, MatchMemo memo);
+
+	/**
+	 * Returns the set of offsets in the given character sequence where an
+	 * accepted run starts. Offset <code>s.length()</code> is included if the
+	 * empty string is accepted.
+	 */
+	abstract BitSet matchStarts(CharSequence s);
+
+	/**
+	 * Returns the first offset at or after <code>from</code> where an
+	 * accepted run starts, found by running the automaton forward only from
+	 * the offsets selected by a {@link Prefilter}. Returns -1 if there is
+	 * none, and -2 if no prefilter applies or if more than
+	 * <code>budget[0]</code> steps would be needed, in which case
+	 * {@link #matchStarts(CharSequence)} should be used. The steps done are
+	 * subtracted from <code>budget[0]</code>, so that a budget shared by
+	 * successive calls bounds their total work.
+	 */
+	int prefilteredMatchStart(CharSequence s, int from, long[] budget) {
+		return -2;
+	}
+
+	/**
+	 * Returns the automaton for capturing groups, or null if there are none.
+	 */
+	abstract TaggedAutomaton getTaggedAutomaton();
+
+	/**
+	 * Returns the map from char number to class for the given char interval
+	 * start points.
+	 */
+	static int[] makeClassmap(char[] points) {
+		int[] classmap = new int[Character.MAX_VALUE - Character.MIN_VALUE + 1];
+		int i = 0;
+		for (int j = 0; j <= Character.MAX_VALUE - Character.MIN_VALUE; j++) {
+			if (i + 1 < points.length && j == points[i + 1])
+				i++;
+			classmap[j] = i;
+		}
+		return classmap;
+	}
+}
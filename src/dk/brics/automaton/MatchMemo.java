@@ -0,0 +1,167 @@
+package dk.brics.automaton;
+
+/**
+ * Furthest match ends reached by the earlier runs of a deterministic
+ * automaton, for the successive searches of an {@link AutomatonMatcher}.
+ * <p>
+ * A run from a match start continues until the dead state, past the end of
+ * the match, so that the run from the next start may read the same chars.
+ * Since the automaton is deterministic, a run that reaches an offset in the
+ * same state as an earlier run continues exactly as the earlier one did: it
+ * stops there and takes the furthest match end recorded for that pair. Each
+ * pair (offset, state) is thus read at most once, and all the searches over
+ * an input of length <i>n</i> take at most <i>n</i> times the number of
+ * states steps.
+ * <p>
+ * The pairs of a run are recorded when it ends. Pairs before the start of
+ * the current run can no longer be reached and are dropped when the table
+ * grows, and all pairs are dropped when a run starts after the last of them.
+ */
+final class MatchMemo {
+
+	/** Returned by {@link #get(int, int)} for a pair not recorded. */
+	static final int ABSENT = -2;
+
+	private long[] keys; // (offset + 1) << 32 | state, 0 for an empty slot
+	private int[] ends; // furthest match end from the pair, -1 if none
+	private int count;
+	private int last = -1; // greatest recorded offset
+
+	private int offset; // start of the current run
+	private int[] run = new int[16]; // states of the current run, after each char
+	private int length;
+
+	private int version; // of the states, see #check(int)
+
+	/**
+	 * Starts recording a run from the given offset.
+	 */
+	void start(int offset) {
+		if (offset >= last)
+			clear();
+		this.offset = offset;
+		length = 0;
+	}
+
+	/**
+	 * Returns the furthest match end recorded for the given pair, -1 if there
+	 * is none, or {@link #ABSENT} if the pair has not been recorded.
+	 */
+	int get(int offset, int state) {
+		if (count == 0)
+			return ABSENT;
+		long key = key(offset, state);
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return ends[i];
+		return ABSENT;
+	}
+
+	/**
+	 * Adds the state of the current run after its next char.
+	 */
+	void add(int state) {
+		if (length == run.length) {
+			int[] r = new int[2 * length];
+			System.arraycopy(run, 0, r, 0, length);
+			run = r;
+		}
+		run[length++] = state;
+	}
+
+	/**
+	 * Ends the current run, whose furthest match end is the given one (-1
+	 * if none), and records its pairs.
+	 */
+	void finish(int end) {
+		for (int j = 0; j < length; j++) {
+			int o = offset + j + 1;
+			put(key(o, run[j]), end >= o ? end : -1);
+		}
+		if (length > 0 && offset + length > last)
+			last = offset + length;
+		length = 0;
+	}
+
+	/**
+	 * Drops all pairs, including those of the current run so far, if the
+	 * states have been renumbered since the last call, as told by the given
+	 * version number.
+	 */
+	void check(int version) {
+		if (version != this.version) {
+			clear();
+			offset += length;
+			length = 0;
+			this.version = version;
+		}
+	}
+
+	private void clear() {
+		if (count > 0) {
+			keys = null;
+			ends = null;
+			count = 0;
+		}
+		last = -1;
+	}
+
+	private void put(long key, int end) {
+		if (keys == null) {
+			keys = new long[16];
+			ends = new int[16];
+		} else if (2 * (count + 1) > keys.length)
+			rehash();
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key)
+				return;
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		ends[i] = end;
+		count++;
+	}
+
+	/**
+	 * Drops the pairs before the current run, and doubles the table if more
+	 * than a quarter of it is still used.
+	 */
+	private void rehash() {
+		long[] old_keys = keys;
+		int[] old_ends = ends;
+		int live = 0;
+		for (long k : old_keys)
+			if (k != 0 && (int)(k >>> 32) - 1 > offset)
+				live++;
+		int n = old_keys.length;
+		if (2 * (live + 1) > n / 2)
+			n *= 2;
+		keys = new long[n];
+		ends = new int[n];
+		count = 0;
+		int mask = n - 1;
+		for (int j = 0; j < old_keys.length; j++) {
+			long k = old_keys[j];
+			if (k != 0 && (int)(k >>> 32) - 1 > offset) {
+				int i = hash(k) & mask;
+				while (keys[i] != 0)
+					i = (i + 1) & mask;
+				keys[i] = k;
+				ends[i] = old_ends[j];
+				count++;
+			}
+		}
+	}
+
+	private static long key(int offset, int state) {
+		return (((long)offset + 1) << 32) | (state & 0xffffffffL);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
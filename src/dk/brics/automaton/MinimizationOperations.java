@@ -30,6 +30,7 @@
 package dk.brics.automaton;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
@@ -43,11 +44,14 @@ final public class MinimizationOperations {
 
 	/**
 	 * Minimizes (and determinizes if not already deterministic) the given automaton.
+	 * @exception IllegalStateException if the automaton is frozen
 	 * @see Automaton#setMinimization(int)
+	 * @see CompilationContext
 	 */
 	public static void minimize(Automaton a) {
+		a.checkMutable();
 		if (!a.isSingleton()) {
-			switch (Automaton.minimization) {
+			switch (CompilationContext.current().minimization) {
 			case Automaton.MINIMIZE_HUFFMAN:
 				minimizeHuffman(a);
 				break;
@@ -55,12 +59,24 @@ final public class MinimizationOperations {
 				minimizeBrzozowski(a);
 				break;
 			default:
-				minimizeHopcroft(a);
+				minimizeValmari(a);
 			}
 		}
 		a.recomputeHashCode();
 	}
 	
+	/**
+	 * Minimizes the given automaton with the given context.
+	 */
+	public static void minimize(Automaton a, CompilationContext context) {
+		CompilationContext previous = context.enter();
+		try {
+			minimize(a);
+		} finally {
+			CompilationContext.exit(previous);
+		}
+	}
+	
 	private static boolean statesAgree(Transition[][] transitions, boolean[][] mark, int n1, int n2) {
 		Transition[] t1 = transitions[n1];
 		Transition[] t2 = transitions[n2];
@@ -199,8 +215,9 @@ final public class MinimizationOperations {
 		for (int n = 0; n < numclasses; n++) {
 			State s = newstates[n];
 			s.accept = states[s.number].accept;
-			for (Transition t : states[s.number].transitions)
-				s.transitions.add(new Transition(t.min, t.max, newstates[t.to.number]));
+			TransitionSet ts = states[s.number].transitions;
+			for (int i = 0; i < ts.size; i++)
+				s.transitions.add(ts.min[i], ts.max[i], newstates[ts.to[i].number]);
 		}
 		a.removeDeadTransitions();
 	}
@@ -376,12 +393,234 @@ final public class MinimizationOperations {
 		for (int n = 0; n < newstates.length; n++) {
 			State s = newstates[n];
 			s.accept = states[s.number].accept;
-			for (Transition t : states[s.number].transitions)
-				s.transitions.add(new Transition(t.min, t.max, newstates[t.to.number]));
+			TransitionSet ts = states[s.number].transitions;
+			for (int i = 0; i < ts.size; i++)
+				s.transitions.add(ts.min[i], ts.max[i], newstates[ts.to[i].number]);
 		}
 		a.removeDeadTransitions();
 	}
 	
+	/** 
+	 * Minimizes the given automaton using the partition refinement algorithm
+	 * of Valmari and Lehtinen, a variant of Hopcroft's algorithm. This is the
+	 * algorithm selected by {@link Automaton#MINIMIZE_HOPCROFT}.
+	 * <p>
+	 * Transitions are split on the char classes of the automaton, and all
+	 * data structures are int arrays. The automaton is not made total.
+	 * <p>
+	 * Complexity: O(m log n) time and O(m) space, where m is the number of
+	 * transitions on char classes and n is the number of states.
+	 */
+	public static void minimizeValmari(Automaton a) {
+		if (a.isSingleton())
+			return;
+		a.determinize();
+		a.removeDeadTransitions(); // required for partial automata
+		Set<State> ss = a.getStates();
+		State[] states = new State[ss.size()];
+		int n = 0;
+		for (State q : ss) {
+			states[n] = q;
+			q.number = n++;
+		}
+		char[] sigma = a.getStartPoints();
+		// transitions on single char classes
+		int m = 0;
+		for (State q : states) {
+			TransitionSet ts = q.transitions;
+			for (int i = 0; i < ts.size; i++)
+				m += classOf(sigma, ts.max[i]) - classOf(sigma, ts.min[i]) + 1;
+		}
+		int[] tail = new int[m];
+		int[] label = new int[m];
+		int[] head = new int[m];
+		m = 0;
+		for (State q : states) {
+			TransitionSet ts = q.transitions;
+			for (int i = 0; i < ts.size; i++) {
+				int hi = classOf(sigma, ts.max[i]);
+				for (int x = classOf(sigma, ts.min[i]); x <= hi; x++) {
+					tail[m] = q.number;
+					label[m] = x;
+					head[m++] = ts.to[i].number;
+				}
+			}
+		}
+		// blocks of states, initially accept and reject states
+		Partition blocks = new Partition(n, null, 0);
+		for (State q : states)
+			if (q.accept)
+				blocks.mark(q.number);
+		blocks.split();
+		refine(blocks, sigma.length, m, tail, label, head);
+		// make a new state for each block, with the transitions of its first state
+		State[] newstates = new State[blocks.z];
+		for (int k = 0; k < newstates.length; k++)
+			newstates[k] = new State();
+		for (int k = 0; k < newstates.length; k++) {
+			State r = states[blocks.elems[blocks.first[k]]];
+			State s = newstates[k];
+			s.accept = r.accept;
+			TransitionSet ts = r.transitions;
+			for (int i = 0; i < ts.size; i++)
+				s.transitions.add(ts.min[i], ts.max[i], newstates[blocks.set[ts.to[i].number]]);
+		}
+		a.initial = newstates[blocks.set[a.initial.number]];
+		a.removeDeadTransitions();
+	}
+
+	/**
+	 * Refines the given partition of states until states in the same block
+	 * have transitions on the same labels to the same blocks.
+	 * <p>
+	 * Complexity: O(m log n).
+	 * @param blocks initial partition of states; states in different blocks are never merged
+	 * @param nlabels number of labels
+	 * @param m number of transitions
+	 * @param tail source state of each transition
+	 * @param label label of each transition; at most one transition per state and label
+	 * @param head destination state of each transition
+	 */
+	static void refine(Partition blocks, int nlabels, int m, int[] tail, int[] label, int[] head) {
+		int n = blocks.elems.length;
+		// cords of transitions, initially one for each label
+		Partition cords = new Partition(m, label, nlabels);
+		// incoming transitions of each state
+		int[] in_first = new int[n + 1];
+		int[] in = new int[m];
+		for (int t = 0; t < m; t++)
+			in_first[head[t] + 1]++;
+		for (int q = 0; q < n; q++)
+			in_first[q + 1] += in_first[q];
+		int[] in_next = Arrays.copyOf(in_first, n);
+		for (int t = 0; t < m; t++)
+			in[in_next[head[t]]++] = t;
+		// block 0 is never needed as a splitter
+		int b = 1, c = 0;
+		while (c < cords.z) {
+			for (int i = cords.first[c]; i < cords.past[c]; i++)
+				blocks.mark(tail[cords.elems[i]]);
+			blocks.split();
+			c++;
+			while (b < blocks.z) {
+				for (int i = blocks.first[b]; i < blocks.past[b]; i++) {
+					int q = blocks.elems[i];
+					for (int j = in_first[q]; j < in_first[q + 1]; j++)
+						cords.mark(in[j]);
+				}
+				cords.split();
+				b++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the char class containing the given char.
+	 */
+	private static int classOf(char[] sigma, char c) {
+		int i = Arrays.binarySearch(sigma, c);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * Refinable partition of the numbers <code>0</code> to
+	 * <code>n-1</code>, as used by Valmari and Lehtinen. The elements of
+	 * each set are consecutive in <code>elems</code>, with the marked
+	 * elements first.
+	 */
+	static final class Partition {
+
+		int z; // number of sets
+		int[] elems;
+		int[] loc; // position of element in elems
+		int[] set; // set of element
+		int[] first; // first position of set
+		int[] past; // position after last element of set
+		int[] marked; // number of marked elements of set
+		int[] touched; // sets with marked elements
+		int ntouched;
+
+		/**
+		 * Constructs a partition with one set, or with one set for each
+		 * used key if <code>key</code> is not null.
+		 */
+		Partition(int n, int[] key, int nkeys) {
+			elems = new int[n];
+			loc = new int[n];
+			set = new int[n];
+			first = new int[n];
+			past = new int[n];
+			marked = new int[n];
+			touched = new int[n];
+			if (n == 0)
+				return;
+			if (key == null) {
+				for (int i = 0; i < n; i++)
+					elems[i] = loc[i] = i;
+				z = 1;
+				past[0] = n;
+				return;
+			}
+			int[] count = new int[nkeys + 1];
+			for (int i = 0; i < n; i++)
+				count[key[i] + 1]++;
+			for (int k = 0; k < nkeys; k++)
+				count[k + 1] += count[k];
+			for (int k = 0; k < nkeys; k++)
+				if (count[k] < count[k + 1]) {
+					first[z] = count[k];
+					past[z++] = count[k + 1];
+				}
+			for (int i = 0; i < n; i++) {
+				int j = count[key[i]]++;
+				elems[j] = i;
+				loc[i] = j;
+			}
+			for (int s = 0; s < z; s++)
+				for (int i = first[s]; i < past[s]; i++)
+					set[elems[i]] = s;
+		}
+
+		void mark(int e) {
+			int s = set[e];
+			int i = loc[e];
+			int j = first[s] + marked[s];
+			if (i < j)
+				return; // already marked
+			elems[i] = elems[j];
+			loc[elems[i]] = i;
+			elems[j] = e;
+			loc[e] = j;
+			if (marked[s]++ == 0)
+				touched[ntouched++] = s;
+		}
+
+		/**
+		 * Splits the marked elements off their sets. The smaller part of a
+		 * split set becomes a new set.
+		 */
+		void split() {
+			while (ntouched > 0) {
+				int s = touched[--ntouched];
+				int j = first[s] + marked[s];
+				if (j == past[s]) {
+					marked[s] = 0;
+					continue;
+				}
+				if (marked[s] <= past[s] - j) {
+					first[z] = first[s];
+					past[z] = first[s] = j;
+				} else {
+					past[z] = past[s];
+					first[z] = past[s] = j;
+				}
+				for (int i = first[z]; i < past[z]; i++)
+					set[elems[i]] = z;
+				marked[s] = marked[z++] = 0;
+			}
+		}
+	}
+
 	static class IntPair {
 
 		int n1, n2;
@@ -0,0 +1,309 @@
+package dk.brics.automaton;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a deterministic automaton over one large input on several threads.
+ * <p>
+ * The input is split into chunks. The first chunk runs from the initial
+ * state. Every other chunk runs at the same time from all states at once,
+ * since the state at its start is not known yet: the runs that reach the
+ * same state are merged, so that after a few chars, typically only one run
+ * is left and the chunk costs no more than a sequential run. Each chunk
+ * thus yields the map from its start state to its end state (and to the
+ * number of accept states on the way), and the maps are then applied in
+ * order to the end state of the first chunk. The results are exactly those
+ * of a sequential run.
+ * <p>
+ * The runs of some automata never merge, for instance those of
+ * <code>(.{64})*</code>, which count the chars modulo 64. A chunk thus
+ * gives up as soon as its runs have taken more than
+ * {@link #SPECULATION_FACTOR} times its length in steps, and is then run
+ * sequentially from its start state once the previous chunks are done, as
+ * is a chunk that has not started by then. In the worst case, the run costs
+ * a sequential run plus that many times the length of the input in wasted
+ * steps on the other threads, so no more than 3 times a sequential run on
+ * a single thread.
+ * <p>
+ * Subclasses give access to the transition function of an automaton whose
+ * states are numbered from 0.
+ * @see RunAutomaton#run(CharSequence, ForkJoinPool)
+ */
+public abstract class ParallelRun {
+
+	/**
+	 * Default minimum number of chars of a chunk.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	// chunks per thread, so that threads finishing early can take over
+	static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Maximum number of steps of the runs of a chunk from all states, as a
+	 * multiple of the length of the chunk. Runs from 2 states that never
+	 * merge, as for a parity check, still fit.
+	 */
+	static final int SPECULATION_FACTOR = 2;
+
+	/**
+	 * Returns the number of states.
+	 */
+	protected abstract int getSize();
+
+	/**
+	 * Returns the state obtained by reading the given char from the given
+	 * state, or -1 for the dead state.
+	 */
+	protected abstract int step(int state, char c);
+
+	/**
+	 * Returns acceptance status for given state.
+	 */
+	protected abstract boolean isAccept(int state);
+
+	/**
+	 * Returns the state reached by reading the given input from the given
+	 * state, or -1 if the dead state is reached.
+	 * <p>
+	 * Complexity: linear in the length of <code>s</code> divided by the
+	 * number of threads of <code>pool</code>, plus, for each chunk, the number
+	 * of states times the number of chars until the runs from all states
+	 * have merged. If they do not merge soon enough, linear in the length of
+	 * <code>s</code>, as a sequential run, plus at most
+	 * {@link #SPECULATION_FACTOR} times that on the other threads.
+	 */
+	public int run(CharSequence s, int initial, ForkJoinPool pool) {
+		return run(s, initial, pool, DEFAULT_CHUNK_SIZE, false).state;
+	}
+
+	/**
+	 * Returns the number of offsets <code>i</code>, from 1 to
+	 * <code>s.length()</code>, such that reading <code>s[0 .. i-1]</code> from
+	 * the given state leads to an accept state. For an automaton for
+	 * <code>Sigma* L</code>, this is the number of offsets where a match of
+	 * <code>L</code> ends.
+	 */
+	public long countAccepts(CharSequence s, int initial, ForkJoinPool pool) {
+		return run(s, initial, pool, DEFAULT_CHUNK_SIZE, true).count;
+	}
+
+	/**
+	 * Same as {@link #run(CharSequence, int, ForkJoinPool)} and
+	 * {@link #countAccepts(CharSequence, int, ForkJoinPool)}, with the given
+	 * minimum chunk size.
+	 */
+	public Result run(CharSequence s, int initial, ForkJoinPool pool, int chunk_size, boolean count) {
+		if (chunk_size < 1)
+			throw new IllegalArgumentException("chunk_size must be positive");
+		int l = s.length();
+		int nb_chunks = (int)Math.min(l / chunk_size, (long)pool.getParallelism() * CHUNKS_PER_THREAD);
+		if (nb_chunks < 2)
+			return runSequential(s, 0, l, initial, count);
+		ChunkTask[] tasks = new ChunkTask[nb_chunks];
+		for (int i = 1; i < nb_chunks; i++) {
+			tasks[i] = new ChunkTask(s, bound(l, nb_chunks, i), bound(l, nb_chunks, i + 1), count);
+			pool.execute(tasks[i]);
+		}
+		Result r = runSequential(s, 0, bound(l, nb_chunks, 1), initial, count);
+		try {
+			int p = r.state;
+			long c = r.count;
+			for (int i = 1; i < nb_chunks; i++) {
+				if (p == -1)
+					break;
+				ChunkTask task = tasks[i];
+				ChunkResult cr = task.claim() ? null : task.join();
+				if (cr == null) {
+					// not started yet, or given up: the start state is known by now
+					r = runSequential(s, task.from, task.to, p, count);
+					c += r.count;
+					p = r.state;
+				} else {
+					if (count)
+						c += cr.counts[p];
+					p = cr.states[p];
+				}
+			}
+			return new Result(p, c);
+		} finally {
+			for (int i = 1; i < nb_chunks; i++)
+				tasks[i].cancel(false);
+		}
+	}
+
+	private static int bound(int l, int nb_chunks, int i) {
+		return (int)((long)l * i / nb_chunks);
+	}
+
+	/**
+	 * Runs <code>s[from .. to-1]</code> from the given state.
+	 */
+	Result runSequential(CharSequence s, int from, int to, int initial, boolean count) {
+		int p = initial;
+		long c = 0;
+		for (int i = from; i < to && p != -1; i++) {
+			p = step(p, s.charAt(i));
+			if (count && p != -1 && isAccept(p))
+				c++;
+		}
+		return new Result(p, c);
+	}
+
+	/**
+	 * Runs <code>s[from .. to-1]</code> from all states. Each run is a node;
+	 * when a node reaches the state of another one, it is merged into it and
+	 * only records the difference of their numbers of accept states so far.
+	 * Returns null if the runs take more than {@link #SPECULATION_FACTOR}
+	 * times the length of the chunk in steps.
+	 */
+	ChunkResult runFromAllStates(CharSequence s, int from, int to, boolean count) {
+		int n = getSize();
+		long budget = (long)SPECULATION_FACTOR * (to - from);
+		if (n > budget)
+			return null;
+		int[] parent = new int[n]; // node a node was merged into, itself if not merged
+		int[] state = new int[n];
+		long[] counts = count ? new long[n] : null;
+		long[] delta = count ? new long[n] : null; // counts[node] - counts[parent[node]] when merged
+		int[] live = new int[n];
+		int k = n;
+		for (int q = 0; q < n; q++) {
+			parent[q] = q;
+			state[q] = q;
+			live[q] = q;
+		}
+		int[] owner = new int[n + 1]; // node having reached state - 1 in the current generation
+		int[] stamp = new int[n + 1];
+		int generation = 0;
+		int pos = from;
+		long steps = 0;
+		while (pos < to && k > 1) {
+			steps += k;
+			if (steps > budget)
+				return null;
+			char c = s.charAt(pos++);
+			generation++;
+			int kk = 0;
+			for (int i = 0; i < k; i++) {
+				int node = live[i];
+				int p = state[node];
+				if (p != -1) {
+					p = step(p, c);
+					state[node] = p;
+					if (count && p != -1 && isAccept(p))
+						counts[node]++;
+				}
+				if (stamp[p + 1] == generation) {
+					int other = owner[p + 1];
+					parent[node] = other;
+					if (count)
+						delta[node] = counts[node] - counts[other];
+				} else {
+					stamp[p + 1] = generation;
+					owner[p + 1] = node;
+					live[kk++] = node;
+				}
+			}
+			k = kk;
+		}
+		if (k == 1) {
+			int node = live[0];
+			Result r = runSequential(s, pos, to, state[node], count);
+			state[node] = r.state;
+			if (count)
+				counts[node] += r.count;
+		}
+		ChunkResult cr = new ChunkResult(n, count);
+		for (int q = 0; q < n; q++) {
+			int root = q;
+			long d = 0;
+			while (parent[root] != root) {
+				if (count)
+					d += delta[root];
+				root = parent[root];
+			}
+			// path compression, so that each node is walked once
+			int x = q;
+			long dx = d;
+			while (parent[x] != x) {
+				int next = parent[x];
+				long dnext = count ? dx - delta[x] : 0;
+				parent[x] = root;
+				if (count)
+					delta[x] = dx;
+				x = next;
+				dx = dnext;
+			}
+			cr.states[q] = state[root];
+			if (count)
+				cr.counts[q] = counts[root] + d;
+		}
+		return cr;
+	}
+
+	/**
+	 * State reached by a run, and number of accept states on the way.
+	 */
+	public static final class Result {
+
+		/** The state reached, -1 for the dead state. */
+		public final int state;
+
+		/** The number of accept states reached, if counted. */
+		public final long count;
+
+		Result(int state, long count) {
+			this.state = state;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * End state and count of a chunk for each start state.
+	 */
+	static final class ChunkResult {
+
+		final int[] states;
+		final long[] counts;
+
+		ChunkResult(int n, boolean count) {
+			states = new int[n];
+			counts = count ? new long[n] : null;
+		}
+	}
+
+	private class ChunkTask extends RecursiveTask<ChunkResult> {
+
+		static final long serialVersionUID = 1;
+
+		final CharSequence s;
+		final int from;
+		final int to;
+		final boolean count;
+		final AtomicBoolean claimed = new AtomicBoolean();
+
+		ChunkTask(CharSequence s, int from, int to, boolean count) {
+			this.s = s;
+			this.from = from;
+			this.to = to;
+			this.count = count;
+		}
+
+		/**
+		 * Returns true for the first caller only: either the task, which
+		 * then runs from all states, or the caller of run, which then runs
+		 * the chunk sequentially.
+		 */
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		@Override
+		protected ChunkResult compute() {
+			return claim() ? runFromAllStates(s, from, to, count) : null;
+		}
+	}
+}
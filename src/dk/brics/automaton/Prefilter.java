@@ -0,0 +1,130 @@
+package dk.brics.automaton;
+
+import java.util.Arrays;
+
+/**
+ * Literals and chars that accepted strings must contain, used to skip the
+ * input where no match can start without running the automaton there.
+ * <p>
+ * Three facts are extracted from a deterministic automaton: the prefix of
+ * all accepted strings ({@link SpecialOperations#getCommonPrefix(Automaton)}),
+ * the chars they can start with, if there are only a few, and a literal
+ * they all contain ({@link SpecialOperations#getRequiredLiteral(Automaton)}).
+ * Searching for them uses <code>String.indexOf</code> when the input is a
+ * <code>String</code>, which the JVM implements with vector instructions.
+ */
+final class Prefilter {
+
+	/** Maximum number of first chars searched for directly. */
+	static final int MAX_FIRST_CHARS = 4;
+
+	final String prefix; // prefix of all accepted strings
+	final String literal; // substring of all accepted strings, not a substring of prefix
+	final char[] first_chars; // chars accepted strings start with, null if too many or if "" is accepted
+	final boolean nullable; // true if the empty string is accepted
+
+	/**
+	 * Analyzes the given deterministic automaton.
+	 */
+	Prefilter(Automaton a) {
+		nullable = a.run("");
+		if (nullable) {
+			prefix = "";
+			literal = "";
+			first_chars = null;
+			return;
+		}
+		prefix = SpecialOperations.getCommonPrefix(a);
+		String s = SpecialOperations.getRequiredLiteral(a);
+		literal = prefix.contains(s) ? "" : s;
+		first_chars = getFirstChars(a);
+	}
+
+	private static char[] getFirstChars(Automaton a) {
+		if (a.isSingleton())
+			return a.singleton.length() > 0 ? new char[] { a.singleton.charAt(0) } : null;
+		char[] chars = new char[MAX_FIRST_CHARS];
+		int n = 0;
+		for (Transition t : a.initial.transitions) {
+			if (t.max - t.min >= MAX_FIRST_CHARS - n)
+				return null;
+			for (int c = t.min; c <= t.max; c++)
+				chars[n++] = (char)c;
+		}
+		if (n == 0)
+			return null;
+		return Arrays.copyOf(chars, n);
+	}
+
+	/**
+	 * Returns true if a prefix or first chars give the offsets where matches
+	 * may start.
+	 */
+	boolean hasCandidates() {
+		return prefix.length() > 0 || first_chars != null;
+	}
+
+	/**
+	 * Returns false if no accepted string occurs in <code>s</code> at or
+	 * after the given offset, since the required literal does not.
+	 */
+	boolean mayMatch(CharSequence s, int from) {
+		return literal.length() == 0 || indexOf(s, literal, from) != -1;
+	}
+
+	/**
+	 * Returns the first offset at or after the given one where an accepted
+	 * string may start, or -1 if there is none. Requires
+	 * {@link #hasCandidates()}.
+	 */
+	int nextCandidate(CharSequence s, int from) {
+		if (prefix.length() > 1)
+			return indexOf(s, prefix, from);
+		if (first_chars.length == 1)
+			return indexOf(s, first_chars[0], from);
+		for (int i = from, l = s.length(); i < l; i++) {
+			char c = s.charAt(i);
+			for (char f : first_chars)
+				if (c == f)
+					return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the first occurrence of <code>w</code> in
+	 * <code>s</code> at or after the given offset, or -1.
+	 */
+	static int indexOf(CharSequence s, String w, int from) {
+		if (s instanceof String)
+			return ((String)s).indexOf(w, from);
+		if (s instanceof StringBuilder)
+			return ((StringBuilder)s).indexOf(w, from);
+		int n = w.length();
+		if (n == 0)
+			return from <= s.length() ? from : -1;
+		char c0 = w.charAt(0);
+		for (int i = from, l = s.length() - n; i <= l; i++)
+			if (s.charAt(i) == c0) {
+				int k = 1;
+				while (k < n && s.charAt(i + k) == w.charAt(k))
+					k++;
+				if (k == n)
+					return i;
+			}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the first occurrence of <code>c</code> in
+	 * <code>s</code> at or after the given offset, or -1.
+	 */
+	static int indexOf(CharSequence s, char c, int from) {
+		if (s instanceof String)
+			return ((String)s).indexOf(c, from);
+		for (int i = from, l = s.length(); i < l; i++)
+			if (s.charAt(i) == c)
+				return i;
+		return -1;
+	}
+}
@@ -101,14 +101,14 @@ import java.util.Set;
  * <td></td>
  * <td>|</td>
  * <td><tt><b>(</b></tt>&nbsp;<tt><b>)</b></tt></td>
- * <td>(the empty string)</td>
+ * <td>(the empty string, capturing group)</td>
  * <td></td>
  * </tr>
  * <tr>
  * <td></td>
  * <td>|</td>
  * <td><tt><b>(</b></tt>&nbsp;<i>unionexp</i>&nbsp;<tt><b>)</b></tt></td>
- * <td>(precedence override)</td>
+ * <td>(capturing group)</td>
  * <td></td>
  * </tr>
  * <tr>
@@ -155,6 +155,10 @@ import java.util.Set;
  * points, and if <tt><i>n</i></tt> and <tt><i>m</i></tt> have the same number
  * of digits, then the conforming strings must have that length (i.e. prefixed
  * by 0's).
+ * <p>
+ * Capturing groups are numbered by their opening parenthesis, from 1. They
+ * do not affect the language, and are only reported by the matchers of
+ * {@link #toRunAutomaton()}.
  * 
  * @author Anders M&oslash;ller &lt;
  *         <a href="mailto:amoeller@cs.au.dk">amoeller@cs.au.dk</a>&gt;
@@ -179,6 +183,7 @@ public class RegExp {
 		REGEXP_AUTOMATON, 
 		REGEXP_INTERVAL, 
 		REGEXP_AUTOMATON_NEGATED,
+		REGEXP_GROUP,
 	}
 
 	/**
@@ -223,7 +228,7 @@ public class RegExp {
 	 */
 	public static final int NONE = 0x0000;
 
-	private static boolean allow_mutation = false;
+	private static volatile boolean allow_mutation = false; // applies with the default context
 
 	private static final AutomatonProvider provider = new DatatypesAutomatonProvider();
 
@@ -233,10 +238,12 @@ public class RegExp {
 	char c;
 	int min, max, digits;
 	char from, to;
+	int group; // index of REGEXP_GROUP
 
 	String b;
 	int flags;
 	int pos;
+	int groups; // number of capturing groups
 
 	RegExp() {
 	}
@@ -287,6 +294,7 @@ public class RegExp {
 		digits = e.digits;
 		from = e.from;
 		to = e.to;
+		group = e.group;
 		b = null;
 	}
 
@@ -298,6 +306,30 @@ public class RegExp {
 		return toAutomatonAllowMutate(null, provider, true);
 	}
 
+	/**
+	 * Constructs new <code>Automaton</code> from this <code>RegExp</code>,
+	 * compiling with the given context instead of the one of the current
+	 * thread. Threads compiling with different contexts do not interfere.
+	 * @see CompilationContext
+	 */
+	public Automaton toAutomaton(CompilationContext context) {
+		return toAutomaton(provider, context);
+	}
+
+	/**
+	 * Same as {@link #toAutomaton(AutomatonProvider)}, compiling with the
+	 * given context.
+	 */
+	public Automaton toAutomaton(AutomatonProvider automaton_provider, CompilationContext context)
+			throws IllegalArgumentException {
+		CompilationContext previous = context.enter();
+		try {
+			return toAutomatonAllowMutate(null, automaton_provider, true);
+		} finally {
+			CompilationContext.exit(previous);
+		}
+	}
+
 	/**
 	 * Constructs new <code>Automaton</code> from this <code>RegExp</code>. Same
 	 * as <code>toAutomaton(null,minimize)</code> (empty automaton map).
@@ -371,10 +403,67 @@ public class RegExp {
 		return toAutomatonAllowMutate(automata, null, minimize);
 	}
 
+	/**
+	 * Constructs new <code>RunAutomaton</code> from this <code>RegExp</code>.
+	 * Same as <code>toRunAutomaton(null)</code> (default automaton provider).
+	 */
+	public RunAutomaton toRunAutomaton() {
+		return toRunAutomaton(provider);
+	}
+
+	/**
+	 * Constructs new <code>RunAutomaton</code> from this <code>RegExp</code>.
+	 * Unlike <code>new RunAutomaton(toAutomaton())</code>, the matchers of the
+	 * returned automaton report the capturing groups of this expression.
+	 * Groups inside intersections and complements (including non-greedy
+	 * repeats) are reported as not participating in the match.
+	 * 
+	 * @param automaton_provider
+	 *            provider of automata for named identifiers
+	 * @exception IllegalArgumentException
+	 *                if this regular expression uses a named identifier that is
+	 *                not available from the automaton provider
+	 */
+	public RunAutomaton toRunAutomaton(AutomatonProvider automaton_provider) throws IllegalArgumentException {
+		return toRunAutomatonInContext(automaton_provider);
+	}
+
+	/**
+	 * Same as {@link #toRunAutomaton(AutomatonProvider)}, compiling with the
+	 * given context.
+	 */
+	public RunAutomaton toRunAutomaton(AutomatonProvider automaton_provider, CompilationContext context)
+			throws IllegalArgumentException {
+		CompilationContext previous = context.enter();
+		try {
+			return toRunAutomatonInContext(automaton_provider);
+		} finally {
+			CompilationContext.exit(previous);
+		}
+	}
+
+	private RunAutomaton toRunAutomatonInContext(AutomatonProvider automaton_provider) {
+		if (automaton_provider == null)
+			automaton_provider = provider;
+		RunAutomaton r = new RunAutomaton(toAutomatonAllowFrozen(null, automaton_provider, true));
+		if (groups > 0)
+			r.tagged = TaggedAutomaton.make(this, null, automaton_provider);
+		return r;
+	}
+
+	/**
+	 * Returns the number of capturing groups in this regular expression.
+	 */
+	public int getGroupCount() {
+		return groups;
+	}
+
 	/**
 	 * Sets or resets allow mutate flag. If this flag is set, then automata
-	 * construction uses mutable automata, which is slightly faster but not
-	 * thread safe. By default, the flag is not set.
+	 * construction uses mutable automata, which is slightly faster. It
+	 * applies to the regular expressions compiled with the default
+	 * {@link CompilationContext}, see {@link CompilationContext#setAllowMutate(boolean)}
+	 * for the others. By default, the flag is not set.
 	 * 
 	 * @param flag
 	 *            if true, the flag is set
@@ -388,16 +477,29 @@ public class RegExp {
 
 	private Automaton toAutomatonAllowMutate(Map<String, Automaton> automata, AutomatonProvider automaton_provider,
 			boolean minimize) throws IllegalArgumentException {
-		boolean b = false;
-		if (allow_mutation)
-			b = Automaton.setAllowMutate(true); // thread unsafe
-		Automaton a = toAutomaton(automata, automaton_provider, minimize);
-		if (allow_mutation)
-			Automaton.setAllowMutate(b);
-		return a;
+		Automaton a = toAutomatonAllowFrozen(automata, automaton_provider, minimize);
+		return a.isFrozen() ? a.clone() : a; // the caller may modify it
+	}
+
+	/**
+	 * Same as {@link #toAutomatonAllowMutate(Map, AutomatonProvider, boolean)},
+	 * but may return a frozen named automaton instead of a copy.
+	 */
+	private Automaton toAutomatonAllowFrozen(Map<String, Automaton> automata, AutomatonProvider automaton_provider,
+			boolean minimize) throws IllegalArgumentException {
+		CompilationContext c = CompilationContext.current();
+		if (!allow_mutation || c != CompilationContext.getDefault())
+			return toAutomaton(automata, automaton_provider, minimize);
+		// only for the current thread
+		CompilationContext previous = c.withAllowMutate(true).enter();
+		try {
+			return toAutomaton(automata, automaton_provider, minimize);
+		} finally {
+			CompilationContext.exit(previous);
+		}
 	}
 
-	private Automaton toAutomaton(Map<String, Automaton> automata, AutomatonProvider automaton_provider,
+	Automaton toAutomaton(Map<String, Automaton> automata, AutomatonProvider automaton_provider,
 			boolean minimize) throws IllegalArgumentException {
 		List<Automaton> list;
 		Automaton a = null;
@@ -407,39 +509,47 @@ public class RegExp {
 			findLeaves(exp1, Kind.REGEXP_UNION, list, automata, automaton_provider, minimize);
 			findLeaves(exp2, Kind.REGEXP_UNION, list, automata, automaton_provider, minimize);
 			a = BasicOperations.union(list);
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_CONCATENATION:
 			list = new ArrayList<Automaton>();
 			findLeaves(exp1, Kind.REGEXP_CONCATENATION, list, automata, automaton_provider, minimize);
 			findLeaves(exp2, Kind.REGEXP_CONCATENATION, list, automata, automaton_provider, minimize);
 			a = BasicOperations.concatenate(list);
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_INTERSECTION:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize)
 					.intersection(exp2.toAutomaton(automata, automaton_provider, minimize));
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_OPTIONAL:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize).optional();
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_REPEAT:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize).repeat();
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_REPEAT_MIN:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize).repeat(min);
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_REPEAT_MINMAX:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize).repeat(min, max);
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_COMPLEMENT:
 			a = exp1.toAutomaton(automata, automaton_provider, minimize).complement();
-			a.minimize();
+			if (minimize)
+				a.minimize();
 			break;
 		case REGEXP_CHAR:
 			a = BasicAutomata.makeChar(c);
@@ -473,7 +583,7 @@ public class RegExp {
 				throw new IllegalArgumentException("'" + s + "' not found");
 				//a = BasicAutomata.makeString("<" + s + ">");
 			} else
-				a = aa.clone(); // always clone here (ignore allow_mutate)
+				a = shareOrClone(aa);
 		}
 			break;
 		case REGEXP_AUTOMATON_NEGATED: {
@@ -488,23 +598,38 @@ public class RegExp {
 				}
 			if (aa == null)
 				throw new IllegalArgumentException("'" + s + "' not found");
-			a = aa.clone().complement(); // always clone here (ignore
-											// allow_mutate)
+			a = shareOrClone(aa).complement();
 		}
 			break;
 		case REGEXP_INTERVAL:
 			a = BasicAutomata.makeInterval(min, max, digits);
 			break;
+		case REGEXP_GROUP:
+			a = exp1.toAutomaton(automata, automaton_provider, minimize);
+			break;
 		}
 		return a;
 	}
 
+	/**
+	 * Returns the given named automaton if it is frozen, and otherwise a clone
+	 * (regardless of allow_mutate), since the result may be modified by the
+	 * operations on it. Operations copy a frozen automaton only if they need
+	 * to modify it, so that a frozen builtin used several times in an
+	 * expression is not copied for each use.
+	 */
+	private static Automaton shareOrClone(Automaton a) {
+		return a.isFrozen() ? a : a.clone();
+	}
+
 	private void findLeaves(RegExp exp, Kind kind, List<Automaton> list, Map<String, Automaton> automata,
 			AutomatonProvider automaton_provider, boolean minimize) {
 		if (exp.kind == kind) {
 			findLeaves(exp.exp1, kind, list, automata, automaton_provider, minimize);
 			findLeaves(exp.exp2, kind, list, automata, automaton_provider, minimize);
-		} else
+		} else if (exp.kind == Kind.REGEXP_GROUP)
+			findLeaves(exp.exp1, kind, list, automata, automaton_provider, minimize);
+		else
 			list.add(exp.toAutomaton(automata, automaton_provider, minimize));
 	}
 
@@ -598,6 +723,11 @@ public class RegExp {
 					b.append('0');
 			b.append(s2).append(">");
 			break;
+		case REGEXP_GROUP:
+			b.append("(");
+			exp1.toStringBuilder(b);
+			b.append(")");
+			break;
 		}
 		return b;
 	}
@@ -625,6 +755,7 @@ public class RegExp {
 		case REGEXP_REPEAT_MIN:
 		case REGEXP_REPEAT_MINMAX:
 		case REGEXP_COMPLEMENT:
+		case REGEXP_GROUP:
 			exp1.getIdentifiers(set);
 			break;
 		case REGEXP_AUTOMATON:
@@ -637,6 +768,28 @@ public class RegExp {
 		}
 	}
 
+	/**
+	 * Returns true if this regular expression contains capturing groups.
+	 */
+	boolean hasGroups() {
+		switch (kind) {
+		case REGEXP_GROUP:
+			return true;
+		case REGEXP_UNION:
+		case REGEXP_CONCATENATION:
+		case REGEXP_INTERSECTION:
+			return exp1.hasGroups() || exp2.hasGroups();
+		case REGEXP_OPTIONAL:
+		case REGEXP_REPEAT:
+		case REGEXP_REPEAT_MIN:
+		case REGEXP_REPEAT_MINMAX:
+		case REGEXP_COMPLEMENT:
+			return exp1.hasGroups();
+		default:
+			return false;
+		}
+	}
+
 	static RegExp makeUnion(RegExp exp1, RegExp exp2) {
 		RegExp r = new RegExp();
 		r.kind = Kind.REGEXP_UNION;
@@ -670,17 +823,21 @@ public class RegExp {
 				&& (exp2.exp1.kind == Kind.REGEXP_CHAR || exp2.exp1.kind == Kind.REGEXP_STRING)) {
 			r.exp1 = makeString(exp1, exp2.exp1);
 			r.exp2 = exp2.exp2;
-		} else if(exp1.kind == Kind.REGEXP_OPTIONAL && exp1.exp1 != null && exp2.kind != Kind.REGEXP_OPTIONAL) {
+		} else if(ungroup(exp1).kind == Kind.REGEXP_OPTIONAL && ungroup(exp1).exp1 != null
+				&& ungroup(exp2).kind != Kind.REGEXP_OPTIONAL) {
 			//我们处理一下非贪心匹配
 			//根据网上的建议，可以用自动机处理， 我们这里的实现就是这么做的
 			//假设  
 			//    A B 分别表示一个正则			
 			//	  A# 表示将A 最少重复 0 次（上限可以指定也可以不定), A* 表示 通常的重复0次以上
 			//	     ：表示非贪心，
-			if(exp1.exp1.kind == Kind.REGEXP_REPEAT) {
+			//改写为 H B 的形式， H 对应 A#:B 中 A# 匹配的部分， 如果 A# 在捕获组里， H 也放进同样的捕获组
+			RegExp R = ungroup(exp1).exp1;
+			RegExp H;
+			if(R.kind == Kind.REGEXP_REPEAT) {
 				//A#:B = (A#&!(A*BA*)+)B
 				
-				RegExp A = exp1.exp1.exp1;
+				RegExp A = R.exp1;
 				RegExp A1 = makeRepeat(A);
 				RegExp B = exp2;
 				
@@ -688,15 +845,15 @@ public class RegExp {
 								makeSimpleConcatenation(B, A1));
 				RegExp C1 = makeComplement(makeRepeat(A2, 1));
 				
-				r.exp1  = makeIntersection(exp1.exp1, C1); 
-				r.exp2 = B;
+				H = makeIntersection(R, C1); 
 				
-			} else if(exp1.exp1.kind == Kind.REGEXP_REPEAT_MIN) {
+			} else if(R.kind == Kind.REGEXP_REPEAT_MIN
+					|| (R.kind == Kind.REGEXP_REPEAT_MINMAX && R.max == 0)) {
 				// A+:B = A(A*:B)
 				// A{N,}:B = A{N}(A*:B)
 				
-				RegExp A = exp1.exp1.exp1;
-				RegExp L = exp1.exp1.min == 1 ? A : makeRepeat(A, exp1.exp1.min, exp1.exp1.min);
+				RegExp A = R.exp1;
+				RegExp L = R.min == 1 ? A : makeRepeat(A, R.min, R.min);
 				RegExp A1 = makeRepeat(A);
 				RegExp B = exp2;
 				
@@ -704,54 +861,31 @@ public class RegExp {
 						makeSimpleConcatenation(B, A1));
 		
 				RegExp C1 = makeComplement(makeRepeat(A2, 1));
-				RegExp C2 = makeSimpleConcatenation(makeIntersection(A1, C1), B);
 				
-				r.exp1  = L;
-				r.exp2 = C2;
+				H = makeSimpleConcatenation(L, makeIntersection(A1, C1));
 				
-			} else if(exp1.exp1.kind == Kind.REGEXP_REPEAT_MINMAX) {
-				if(exp1.exp1.max == 0) {
-					// A+:B = A(A*:B)
-					// A{N,}:B = A{N}(A*:B)
-					
-					RegExp A = exp1.exp1.exp1;
-					RegExp L = exp1.exp1.min == 1 ? A : makeRepeat(A, exp1.exp1.min, exp1.exp1.min);
-					RegExp A1 = makeRepeat(A);
-					RegExp B = exp2;
-					
-					RegExp A2 = makeSimpleConcatenation(A1, 
-							makeSimpleConcatenation(B, A1));
-			
-					RegExp C1 = makeComplement(makeRepeat(A2, 1));
-					RegExp C2 = makeSimpleConcatenation(makeIntersection(A1, C1), B);
-					
-					r.exp1  = L;
-					r.exp2 = C2;
-				} else if(exp1.exp1.min < exp1.exp1.max) {
-					//A{N,M}:B = A{N}(A{0,M-N}:B)
-					RegExp A = exp1.exp1.exp1;
-					RegExp L = makeRepeat(A, exp1.exp1.min, exp1.exp1.min);
-					RegExp A1 = makeRepeat(A, 0, exp1.exp1.max - exp1.exp1.min);
-					RegExp B = exp2;
-					
-					RegExp A2 = makeSimpleConcatenation(A1, 
-									makeSimpleConcatenation(B, A1));
-					
-					RegExp C1 = makeComplement(makeRepeat(A2, 1));
-					RegExp C2 = makeSimpleConcatenation(makeIntersection(A1, C1), B);
-					
-					r.exp1  = L;
-					r.exp2 = C2;
-				} else {
-					//A{N,N}:B = A{N}B
-					RegExp A = exp1.exp1.exp1;
-					r.exp1 = makeRepeat(A, exp1.exp1.min, exp1.exp1.min);
-					r.exp2 = exp2;
-				}
+			} else if(R.kind == Kind.REGEXP_REPEAT_MINMAX && R.min < R.max) {
+				//A{N,M}:B = A{N}(A{0,M-N}:B)
+				RegExp A = R.exp1;
+				RegExp L = makeRepeat(A, R.min, R.min);
+				RegExp A1 = makeRepeat(A, 0, R.max - R.min);
+				RegExp B = exp2;
+				
+				RegExp A2 = makeSimpleConcatenation(A1, 
+								makeSimpleConcatenation(B, A1));
+				
+				RegExp C1 = makeComplement(makeRepeat(A2, 1));
+				
+				H = makeSimpleConcatenation(L, makeIntersection(A1, C1));
+			} else if(R.kind == Kind.REGEXP_REPEAT_MINMAX) {
+				//A{N,N}:B = A{N}B
+				RegExp A = R.exp1;
+				H = makeRepeat(A, R.min, R.min);
 			} else {
-				r.exp1 = exp1;
-				r.exp2 = exp2;
+				H = ungroup(exp1);
 			}
+			r.exp1 = regroup(exp1, H);
+			r.exp2 = exp2;
 		}
 		else {
 			r.exp1 = exp1;
@@ -873,6 +1007,28 @@ public class RegExp {
 		return r;
 	}
 
+	static RegExp makeGroup(RegExp exp, int group) {
+		RegExp r = new RegExp();
+		r.kind = Kind.REGEXP_GROUP;
+		r.exp1 = exp;
+		r.group = group;
+		return r;
+	}
+
+	//去掉外层的捕获组
+	static RegExp ungroup(RegExp exp) {
+		while (exp.kind == Kind.REGEXP_GROUP)
+			exp = exp.exp1;
+		return exp;
+	}
+
+	//用 exp 外层的捕获组包住 inner
+	static RegExp regroup(RegExp exp, RegExp inner) {
+		if (exp.kind != Kind.REGEXP_GROUP)
+			return inner;
+		return makeGroup(regroup(exp.exp1, inner), exp.group);
+	}
+
 	static RegExp makeInterval(int min, int max, int digits) {
 		RegExp r = new RegExp();
 		r.kind = Kind.REGEXP_INTERVAL;
@@ -1108,12 +1264,13 @@ public class RegExp {
 				throw new IllegalArgumentException("expected '\"' at position " + pos);
 			return makeString(b.substring(start, pos - 1));
 		} else if (match('(')) {
+			int group = ++groups;
 			if (match(')'))
-				return makeString("");
+				return makeGroup(makeString(""), group);
 			RegExp e = parseUnionExp();
 			if (!match(')'))
 				throw new IllegalArgumentException("expected ')' at position " + pos + " of " + b);
-			return e;
+			return makeGroup(e, group);
 		} else if ((check(AUTOMATON) || check(INTERVAL)) && match('<')) {
 			int start = pos;
 			while (more() && !peek(">"))
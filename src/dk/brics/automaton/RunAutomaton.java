@@ -29,35 +29,44 @@
 
 package dk.brics.automaton;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Finite-state automaton with fast run operation.
  * @author Anders M&oslash;ller &lt;<a href="mailto:amoeller@cs.au.dk">amoeller@cs.au.dk</a>&gt;
  */
-public class RunAutomaton implements Serializable {
+public class RunAutomaton extends MatchEngine implements Serializable {
 
 	static final long serialVersionUID = 20001;
 
+	/** Kind of a <code>RunAutomaton</code> in {@link BinaryTables}. */
+	static final int BINARY_KIND = 1;
+
 	int size;
 	boolean[] accept;
 	int initial;
 	int[] transitions; // delta(state,c) = transitions[state*points.length + getCharClass(c)]
+	transient IntBuffer mapped_transitions; // used instead of transitions if mapped from a file
 	char[] points; // char interval start points
 	int[] classmap; // map from char number to class class
+	TaggedAutomaton tagged; // capturing groups, set by RegExp.toRunAutomaton
+	transient RunAutomaton reverse_search; // Sigma* rev(L), built on first use by AutomatonMatcher
+	transient Prefilter prefilter; // built on first use by AutomatonMatcher
 
 	/** 
 	 * Sets alphabet table for optimal run performance. 
 	 */
 	final void setAlphabet() {
-		classmap = new int[Character.MAX_VALUE - Character.MIN_VALUE + 1];
-		int i = 0;
-		for (int j = 0; j <= Character.MAX_VALUE - Character.MIN_VALUE; j++) {
-			if (i + 1 < points.length && j == points[i + 1])
-				i++;
-			classmap[j] = i;
-		}
+		classmap = makeClassmap(points);
 	}
 
 	/** 
@@ -74,7 +83,7 @@ public class RunAutomaton implements Serializable {
 			else
 				b.append(" [reject]:\n");
 			for (int j = 0; j < points.length; j++) {
-				int k = transitions[i * points.length + j];
+				int k = delta(i * points.length + j);
 				if (k != -1) {
 					char min = points[j];
 					char max;
@@ -116,6 +125,21 @@ public class RunAutomaton implements Serializable {
 		return initial;
 	}
 
+	/**
+	 * Returns the number of bytes of the tables of this automaton on the
+	 * heap: the transition table, unless it is mapped from a file, and the
+	 * alphabet table, if any. Automata built on first use by matchers are
+	 * not counted.
+	 */
+	public long getTableBytes() {
+		long n = 2L * points.length + size;
+		if (transitions != null)
+			n += 4L * transitions.length;
+		if (classmap != null)
+			n += 4L * classmap.length;
+		return n;
+	}
+
 	/**
 	 * Returns array of character class interval start points. The array should
 	 * not be modified by the caller.
@@ -131,7 +155,6 @@ public class RunAutomaton implements Serializable {
 		return SpecialOperations.findIndex(c, points);
 	}
 
-	@SuppressWarnings("unused")
 	private RunAutomaton() {}
 
 	/**
@@ -154,8 +177,7 @@ public class RunAutomaton implements Serializable {
 	public RunAutomaton(Automaton a, boolean tableize) {
 		a.determinize();
 		points = a.getStartPoints();
-		Set<State> states = a.getStates();
-		Automaton.setStateNumbers(states);
+		Set<State> states = a.getNumberedStates();
 		initial = a.initial.number;
 		size = states.size();
 		accept = new boolean[size];
@@ -183,10 +205,23 @@ public class RunAutomaton implements Serializable {
 	 * transition function.)
 	 */
 	public int step(int state, char c) {
+		int i;
 		if (classmap == null)
-			return transitions[state * points.length + getCharClass(c)];
+			i = state * points.length + getCharClass(c);
 		else
-			return transitions[state * points.length + classmap[c - Character.MIN_VALUE]];
+			i = state * points.length + classmap[c - Character.MIN_VALUE];
+		if (transitions != null)
+			return transitions[i];
+		return mapped_transitions.get(i);
+	}
+
+	/**
+	 * Returns the entry of the transition table at the given index.
+	 */
+	int delta(int i) {
+		if (transitions != null)
+			return transitions[i];
+		return mapped_transitions.get(i);
 	}
 
 	/**
@@ -263,6 +298,305 @@ public class RunAutomaton implements Serializable {
 		return max;
 	}
 
+	/**
+	 * Same as {@link #run(String)}, running chunks of the input in parallel
+	 * on the given pool, see {@link ParallelRun}.
+	 */
+	public boolean run(CharSequence s, ForkJoinPool pool) {
+		int p = parallelRun().run(s, initial, pool);
+		return p != -1 && accept[p];
+	}
+
+	/**
+	 * Returns the number of offsets <code>i</code>, from 1 to
+	 * <code>s.length()</code>, such that <code>s[0 .. i-1]</code> is accepted.
+	 * For an automaton for <code>Sigma* L</code>, this is the number of
+	 * offsets where a match of <code>L</code> ends.
+	 */
+	public long countAccepts(CharSequence s) {
+		return parallelRun().runSequential(s, 0, s.length(), initial, true).count;
+	}
+
+	/**
+	 * Same as {@link #countAccepts(CharSequence)}, running chunks of the
+	 * input in parallel on the given pool, see {@link ParallelRun}.
+	 */
+	public long countAccepts(CharSequence s, ForkJoinPool pool) {
+		return parallelRun().countAccepts(s, initial, pool);
+	}
+
+	private ParallelRun parallelRun() {
+		return new ParallelRun() {
+			@Override
+			protected int getSize() {
+				return size;
+			}
+
+			@Override
+			protected int step(int state, char c) {
+				return RunAutomaton.this.step(state, c);
+			}
+
+			@Override
+			protected boolean isAccept(int state) {
+				return accept[state];
+			}
+		};
+	}
+
+	@Override
+	int longestMatch(CharSequence s, int offset, MatchMemo memo) {
+		int p = initial;
+		int l = s.length();
+		int end = accept[p] ? offset : -1;
+		memo.start(offset);
+		for (int i = offset; i < l; i++) {
+			p = step(p, s.charAt(i));
+			if (p == -1)
+				break;
+			int e = memo.get(i + 1, p);
+			if (e != MatchMemo.ABSENT) {
+				if (e != -1)
+					end = e;
+				break;
+			}
+			memo.add(p);
+			if (accept[p])
+				end = i + 1;
+		}
+		memo.finish(end);
+		return end == -1 ? -1 : end - offset;
+	}
+
+	/**
+	 * Complexity: linear in the length of <code>s</code>, using a single
+	 * backward pass of the automaton for <code>Sigma* reverse(L)</code>.
+	 */
+	@Override
+	BitSet matchStarts(CharSequence s) {
+		RunAutomaton r = getReverseSearchAutomaton();
+		int l = s.length();
+		BitSet starts = new BitSet(l + 1);
+		int p = r.initial;
+		if (r.accept[p])
+			starts.set(l);
+		for (int i = l - 1; i >= 0; i--) {
+			p = r.step(p, s.charAt(i));
+			if (p == -1)
+				break;
+			if (r.accept[p])
+				starts.set(i);
+		}
+		return starts;
+	}
+
+	/**
+	 * Returns a deterministic automaton for <code>Sigma* reverse(L)</code>,
+	 * where <code>L</code> is the language of this automaton. Reading the
+	 * input backwards, it accepts exactly at the offsets where a match of
+	 * <code>L</code> starts. Built on first use.
+	 */
+	synchronized RunAutomaton getReverseSearchAutomaton() {
+		if (reverse_search == null) {
+			Automaton a = toAutomaton();
+			SpecialOperations.reverseSearch(a);
+			a.minimize();
+			reverse_search = new RunAutomaton(a, classmap != null);
+		}
+		return reverse_search;
+	}
+
+	/**
+	 * Complexity: the time of <code>String.indexOf</code> to reach each
+	 * candidate offset, plus the steps from the candidates, at most
+	 * <code>budget[0]</code>.
+	 */
+	@Override
+	int prefilteredMatchStart(CharSequence s, int from, long[] budget) {
+		Prefilter f = getPrefilter();
+		if (!f.mayMatch(s, from))
+			return -1;
+		if (!f.hasCandidates())
+			return -2;
+		int l = s.length();
+		for (int c = f.nextCandidate(s, from); c != -1; c = f.nextCandidate(s, c + 1)) {
+			int p = initial;
+			for (int i = c; i < l; i++) {
+				if (--budget[0] < 0)
+					return -2;
+				p = step(p, s.charAt(i));
+				if (p == -1)
+					break;
+				if (accept[p])
+					return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the prefilter of this automaton. Built on first use.
+	 */
+	synchronized Prefilter getPrefilter() {
+		if (prefilter == null)
+			prefilter = new Prefilter(toAutomaton());
+		return prefilter;
+	}
+
+	@Override
+	TaggedAutomaton getTaggedAutomaton() {
+		return tagged;
+	}
+
+	/**
+	 * Returns an <code>Automaton</code> with the same states and transitions
+	 * as this automaton.
+	 */
+	Automaton toAutomaton() {
+		State[] states = new State[size];
+		for (int n = 0; n < size; n++) {
+			states[n] = new State();
+			states[n].accept = accept[n];
+		}
+		for (int n = 0; n < size; n++)
+			for (int c = 0; c < points.length; c++) {
+				int k = delta(n * points.length + c);
+				if (k != -1) {
+					char max;
+					if (c + 1 < points.length)
+						max = (char)(points[c + 1] - 1);
+					else
+						max = Character.MAX_VALUE;
+					states[n].addTransition(new Transition(points[c], max, states[k]));
+				}
+			}
+		Automaton a = new Automaton();
+		a.initial = states[initial];
+		a.deterministic = true;
+		a.reduce();
+		return a;
+	}
+
+	/**
+	 * Writes this automaton to the given stream in the format of
+	 * {@link BinaryTables}. Capturing groups are included.
+	 * @param out output stream, not closed
+	 */
+	public void store(OutputStream out) throws IOException {
+		BinaryTables.Writer w = new BinaryTables.Writer(BINARY_KIND);
+		write(w);
+		w.writeTo(out);
+	}
+
+	/**
+	 * Reads an automaton written by {@link #store(OutputStream)}. The tables
+	 * are copied into the heap.
+	 * @param in input stream, read to the end but not closed
+	 * @exception IOException if the input is not a valid file of the current
+	 *            format version
+	 */
+	public static RunAutomaton load(InputStream in) throws IOException {
+		BinaryTables.Reader r = new BinaryTables.Reader(BinaryTables.read(in), BINARY_KIND);
+		RunAutomaton a = read(r, false, null);
+		r.finish();
+		return a;
+	}
+
+	/**
+	 * Maps a file written by {@link #store(OutputStream)} into memory. The
+	 * transition table is read in place from the mapped file instead of
+	 * being copied, so loading takes time proportional to the number of
+	 * states and char classes only (plus one pass for the checksum), and
+	 * processes mapping the same file share its pages.
+	 * @exception IOException if the file is not a valid file of the current
+	 *            format version
+	 */
+	public static RunAutomaton map(File file) throws IOException {
+		BinaryTables.Reader r = new BinaryTables.Reader(BinaryTables.map(file), BINARY_KIND);
+		RunAutomaton a = read(r, true, null);
+		r.finish();
+		return a;
+	}
+
+	/**
+	 * Writes the tables of this automaton.
+	 */
+	void write(BinaryTables.Writer w) {
+		w.writeInt(size);
+		w.writeInt(initial);
+		w.writeInt(classmap != null ? 1 : 0);
+		w.writeBooleans(accept);
+		w.writeChars(points);
+		if (transitions != null)
+			w.writeInts(transitions);
+		else
+			w.writeInts(mapped_transitions);
+		if (tagged != null) {
+			w.writeInt(1);
+			tagged.write(w);
+		} else
+			w.writeInt(0);
+	}
+
+	/**
+	 * Reads tables written by {@link #write(BinaryTables.Writer)}.
+	 * @param in_place if true, the transition table is a view of the
+	 *                 reader's buffer
+	 * @param classmaps if not null, alphabet tables already built for the
+	 *                  same char intervals, which are shared instead of
+	 *                  built again
+	 */
+	static RunAutomaton read(BinaryTables.Reader r, boolean in_place, Map<String, int[]> classmaps) throws IOException {
+		RunAutomaton a = new RunAutomaton();
+		a.size = r.readInt();
+		a.initial = r.readInt();
+		boolean tableize = r.readInt() != 0;
+		a.accept = r.readBooleans();
+		a.points = r.readChars();
+		if (in_place)
+			a.mapped_transitions = r.readIntBuffer();
+		else
+			a.transitions = r.readInts();
+		int n = in_place ? a.mapped_transitions.capacity() : a.transitions.length;
+		if (a.size < 0 || a.accept.length != a.size || a.points.length == 0
+				|| n != a.size * a.points.length || a.initial < 0 || a.initial >= a.size)
+			throw new IOException("corrupt file");
+		if (r.readInt() != 0)
+			a.tagged = TaggedAutomaton.read(r);
+		if (tableize) {
+			if (classmaps == null)
+				a.setAlphabet();
+			else {
+				String key = new String(a.points);
+				a.classmap = classmaps.get(key);
+				if (a.classmap == null) {
+					a.setAlphabet();
+					classmaps.put(key, a.classmap);
+				}
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Serializes a copy with the transition table in the heap if this
+	 * automaton is mapped from a file.
+	 */
+	private Object writeReplace() {
+		if (transitions != null)
+			return this;
+		RunAutomaton a = new RunAutomaton();
+		a.size = size;
+		a.accept = accept;
+		a.initial = initial;
+		a.points = points;
+		a.classmap = classmap;
+		a.tagged = tagged;
+		a.transitions = new int[mapped_transitions.capacity()];
+		mapped_transitions.duplicate().get(a.transitions);
+		return a;
+	}
+
 	/**
 	 * Creates a new automaton matcher for the given input.
 	 * @param s the CharSequence to search
@@ -59,8 +59,8 @@ final public class ShuffleOperations {
 	public static Automaton shuffle(Automaton a1, Automaton a2) {
 		a1.determinize();
 		a2.determinize();
-		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getStates());
-		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getStates());
+		Transition[][] transitions1 = Automaton.getSortedTransitions(a1.getNumberedStates());
+		Transition[][] transitions2 = Automaton.getSortedTransitions(a2.getNumberedStates());
 		Automaton c = new Automaton();
 		LinkedList<StatePair> worklist = new LinkedList<StatePair>();
 		HashMap<StatePair, StatePair> newstates = new HashMap<StatePair, StatePair>();
@@ -132,8 +132,8 @@ final public class ShuffleOperations {
 		Transition[][][] ca_transitions = new Transition[ca.size()][][];
 		int i = 0;
 		for (Automaton a1 : ca)
-			ca_transitions[i++] = Automaton.getSortedTransitions(a1.getStates());
-		Transition[][] a_transitions = Automaton.getSortedTransitions(a.getStates());
+			ca_transitions[i++] = Automaton.getSortedTransitions(a1.getNumberedStates());
+		Transition[][] a_transitions = Automaton.getSortedTransitions(a.getNumberedStates());
 		TransitionComparator tc = new TransitionComparator(false);
 		ShuffleConfiguration init = new ShuffleConfiguration(ca, a);
 		LinkedList<ShuffleConfiguration> pending = new LinkedList<ShuffleConfiguration>();
@@ -29,9 +29,11 @@
 
 package dk.brics.automaton;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -48,17 +50,20 @@ final public class SpecialOperations {
 	 * the set of new initial states.
 	 */
 	public static Set<State> reverse(Automaton a) {
+		a.checkMutable();
 		// reverse all edges
-		HashMap<State, HashSet<Transition>> m = new HashMap<State, HashSet<Transition>>();
+		HashMap<State, TransitionSet> m = new HashMap<State, TransitionSet>();
 		Set<State> states = a.getStates();
 		Set<State> accept = a.getAcceptStates();
 		for (State r : states) {
-			m.put(r, new HashSet<Transition>());
+			m.put(r, new TransitionSet());
 			r.accept = false;
 		}
-		for (State r : states)
-			for (Transition t : r.getTransitions())
-				m.get(t.to).add(new Transition(t.min, t.max, r));
+		for (State r : states) {
+			TransitionSet ts = r.transitions;
+			for (int i = 0; i < ts.size; i++)
+				m.get(ts.to[i]).add(ts.min[i], ts.max[i], r);
+		}
 		for (State r : states)
 			r.transitions = m.get(r);
 		// make new initial+final states
@@ -70,6 +75,17 @@ final public class SpecialOperations {
 		return accept;
 	}
 
+	/**
+	 * Reverses the language of the given automaton and prefixes it with
+	 * <code>Sigma*</code>. Reading a string backwards, the resulting automaton
+	 * accepts at every offset where a string of the original language starts.
+	 * The automaton is left nondeterministic.
+	 */
+	static void reverseSearch(Automaton a) {
+		reverse(a);
+		a.initial.addTransition(new Transition(Character.MIN_VALUE, Character.MAX_VALUE, a.initial));
+	}
+
 	/**
 	 * Returns an automaton that accepts the overlap of strings that in more than one way can be split into
 	 * a left part being accepted by <code>a1</code> and a right part being accepted by
@@ -383,7 +399,7 @@ final public class SpecialOperations {
 			HashSet<StatePair> epsilons = new HashSet<StatePair>();
 			a = a.cloneExpandedIfRequired();
 			for (State s : a.getStates()) {
-				HashSet<Transition> new_transitions = new HashSet<Transition>();
+				TransitionSet new_transitions = new TransitionSet();
 				for (Transition t : s.transitions) {
 					boolean addepsilon = false;
 					if (t.min < '\uf900' && t.max > '\udfff') {
@@ -554,6 +570,139 @@ final public class SpecialOperations {
 		return b.toString();
 	}
 	
+	/**
+	 * Returns a string that is a substring of all accepted strings. It is
+	 * read along the states that all accepting runs go through (the
+	 * dominators of the accept states): the char leading to such a state, if
+	 * all transitions to it have the same single char, followed by the chars
+	 * of the single transitions leaving it and the following states, up to
+	 * an accept state or a choice. The longest such string is returned. The
+	 * automaton should be deterministic; it is then in general longer than
+	 * {@link #getCommonPrefix(Automaton)}, e.g. <code>"://"</code> for
+	 * <code>[a-z]+://[^ ]+</code>.
+	 * <p>
+	 * Complexity: quadratic in the number of states in the worst case,
+	 * linear in the number of transitions in practice.
+	 * @return required literal, the empty string if there is none or if the
+	 *         language is empty
+	 */
+	public static String getRequiredLiteral(Automaton a) {
+		if (a.isSingleton())
+			return a.singleton;
+		Set<State> live = a.getLiveStates();
+		if (!live.contains(a.initial))
+			return "";
+		// number the live states in reverse postorder, with an iterative depth-first search
+		ArrayList<State> postorder = new ArrayList<State>();
+		HashMap<State, Integer> number = new HashMap<State, Integer>();
+		ArrayList<State> stack = new ArrayList<State>();
+		ArrayList<Iterator<Transition>> iterators = new ArrayList<Iterator<Transition>>();
+		number.put(a.initial, -1);
+		stack.add(a.initial);
+		iterators.add(a.initial.transitions.iterator());
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			Iterator<Transition> it = iterators.get(top);
+			if (it.hasNext()) {
+				State q = it.next().to;
+				if (live.contains(q) && !number.containsKey(q)) {
+					number.put(q, -1);
+					stack.add(q);
+					iterators.add(q.transitions.iterator());
+				}
+			} else {
+				postorder.add(stack.remove(top));
+				iterators.remove(top);
+			}
+		}
+		int n = postorder.size();
+		State[] states = new State[n];
+		for (int i = 0; i < n; i++) {
+			states[i] = postorder.get(n - 1 - i);
+			number.put(states[i], i);
+		}
+		ArrayList<ArrayList<Integer>> preds = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < n; i++)
+			preds.add(new ArrayList<Integer>());
+		for (int i = 0; i < n; i++)
+			for (Transition t : states[i].transitions)
+				if (live.contains(t.to))
+					preds.get(number.get(t.to)).add(i);
+		// immediate dominators, by the iterative algorithm of Cooper, Harvey and Kennedy
+		int[] idom = new int[n];
+		Arrays.fill(idom, -1);
+		idom[0] = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < n; i++) {
+				int d = -1;
+				for (int p : preds.get(i))
+					if (idom[p] != -1)
+						d = (d == -1) ? p : commonDominator(idom, p, d);
+				if (idom[i] != d) {
+					idom[i] = d;
+					changed = true;
+				}
+			}
+		}
+		int target = -1;
+		for (int i = 0; i < n; i++)
+			if (states[i].accept)
+				target = (target == -1) ? i : commonDominator(idom, i, target);
+		String literal = "";
+		for (int d = target; ; d = idom[d]) {
+			StringBuilder b = new StringBuilder();
+			if (d != 0) {
+				int c = -1;
+				for (int p : preds.get(d))
+					for (Transition t : states[p].transitions)
+						if (t.to == states[d]) {
+							if (t.min != t.max || (c != -1 && c != t.min))
+								c = -2;
+							else if (c != -2)
+								c = t.min;
+						}
+				if (c >= 0)
+					b.append((char)c);
+			}
+			HashSet<State> visited = new HashSet<State>();
+			State s = states[d];
+			while (!s.accept && visited.add(s)) {
+				Transition next = null;
+				int k = 0;
+				for (Transition t : s.transitions)
+					if (live.contains(t.to)) {
+						next = t;
+						k++;
+					}
+				if (k != 1 || next.min != next.max)
+					break;
+				b.append(next.min);
+				s = next.to;
+			}
+			if (b.length() > literal.length())
+				literal = b.toString();
+			if (d == 0)
+				break;
+		}
+		return literal;
+	}
+
+	/**
+	 * Returns the nearest common dominator of the given states, numbered in
+	 * reverse postorder.
+	 */
+	private static int commonDominator(int[] idom, int p, int q) {
+		while (p != q) {
+			while (p > q)
+				p = idom[p];
+			while (q > p)
+				q = idom[q];
+		}
+		return p;
+	}
+
 	/**
 	 * Prefix closes the given automaton.
 	 */
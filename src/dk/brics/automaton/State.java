@@ -29,6 +29,10 @@
 
 package dk.brics.automaton;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.*;
 
@@ -39,33 +43,43 @@ import java.util.*;
 public class State implements Serializable, Comparable<State> {
 	
 	static final long serialVersionUID = 30001;
+
+	// transitions are serialized as a Set, as before TransitionSet
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("accept", Boolean.TYPE),
+		new ObjectStreamField("transitions", Set.class),
+		new ObjectStreamField("number", Integer.TYPE),
+		new ObjectStreamField("id", Integer.TYPE),
+	};
 	
 	boolean accept;
-	Set<Transition> transitions;
+	TransitionSet transitions;
 	
 	int number;
 	
-	int id;
-	static int next_id;
+	int id; // numbered by the compilation context, see CompilationContext
 
 	/** 
 	 * Constructs a new state. Initially, the new state is a reject state. 
 	 */
 	public State() {
 		resetTransitions();
-		id = next_id++;
+		id = CompilationContext.current().next_state_id.getAndIncrement();
 	}
 	
 	/** 
 	 * Resets transition set. 
 	 */
 	final void resetTransitions() {
-		transitions = new HashSet<Transition>();
+		if (transitions != null)
+			transitions.checkMutable();
+		transitions = new TransitionSet();
 	}
 	
 	/** 
 	 * Returns the set of outgoing transitions. 
-	 * Subsequent changes are reflected in the automaton.
+	 * Subsequent changes are reflected in the automaton. The set cannot be
+	 * modified if the automaton is frozen.
 	 * @return transition set
 	 */
 	public Set<Transition> getTransitions()	{
@@ -75,6 +89,7 @@ public class State implements Serializable, Comparable<State> {
 	/**
 	 * Adds an outgoing transition.
 	 * @param t transition
+	 * @exception IllegalStateException if the automaton of this state is frozen
 	 */
 	public void addTransition(Transition t)	{
 		transitions.add(t);
@@ -83,8 +98,10 @@ public class State implements Serializable, Comparable<State> {
 	/** 
 	 * Sets acceptance for this state.
 	 * @param accept if true, this state is an accept state
+	 * @exception IllegalStateException if the automaton of this state is frozen
 	 */
 	public void setAccept(boolean accept) {
+		transitions.checkMutable();
 		this.accept = accept;
 	}
 	
@@ -98,15 +115,14 @@ public class State implements Serializable, Comparable<State> {
 	
 	/** 
 	 * Performs lookup in transitions, assuming determinism. 
+	 * <p>
+	 * Complexity: logarithmic in number of transitions.
 	 * @param c character to look up
 	 * @return destination state, null if no matching outgoing transition
 	 * @see #step(char, Collection)
 	 */
 	public State step(char c) {
-		for (Transition t : transitions)
-			if (t.min <= c && c <= t.max)
-				return t.to;
-		return null;
+		return transitions.step(c);
 	}
 
 	/** 
@@ -116,16 +132,16 @@ public class State implements Serializable, Comparable<State> {
 	 * @see #step(char)
 	 */
 	public void step(char c, Collection<State> dest) {
-		for (Transition t : transitions)
-			if (t.min <= c && c <= t.max)
-				dest.add(t.to);
+		TransitionSet ts = transitions;
+		for (int i = 0; i < ts.size && ts.min[i] <= c; i++)
+			if (c <= ts.max[i])
+				dest.add(ts.to[i]);
 	}
 
 	void addEpsilon(State to) {
 		if (to.accept)
 			accept = true;
-		for (Transition t : to.transitions)
-			transitions.add(t);
+		transitions.addAll(to.transitions);
 	}
 	
 	/** Returns transitions sorted by (min, reverse max, to) or (to, min, reverse max) */
@@ -164,7 +180,8 @@ public class State implements Serializable, Comparable<State> {
 	
 	/**
 	 * Compares this object with the specified object for order.
-	 * States are ordered by the time of construction.
+	 * States are ordered by the time of construction, among the states
+	 * constructed with the same {@link CompilationContext}.
 	 */
 	public int compareTo(State s) {
 		return s.id - id;
@@ -183,7 +200,29 @@ public class State implements Serializable, Comparable<State> {
 	 */
 	@Override
 	public int hashCode() {
-		return super.hashCode();
+		return id;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField f = out.putFields();
+		f.put("accept", accept);
+		f.put("transitions", new HashSet<Transition>(transitions));
+		f.put("number", number);
+		f.put("id", id);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField f = in.readFields();
+		accept = f.get("accept", false);
+		number = f.get("number", 0);
+		id = f.get("id", 0);
+		resetTransitions();
+		Set<Transition> ts = (Set<Transition>)f.get("transitions", null);
+		if (ts != null)
+			for (Transition t : ts)
+				transitions.add(t.min, t.max, t.to);
 	}
 
     void alter(boolean accept, int number, Transition... transitions)
@@ -0,0 +1,422 @@
+package dk.brics.automaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Subset construction used by {@link BasicOperations#determinize(Automaton)}.
+ * <p>
+ * States of the nondeterministic automaton are numbered, and subsets are
+ * sorted int arrays kept in an open addressing hash table. The successors
+ * of a subset are found with one sweep over the start and end points of
+ * its transitions, so the work per subset is proportional to its number of
+ * transitions rather than to the number of interval start points.
+ * <p>
+ * Deterministic states are numbered in order of creation, processing
+ * subsets in that order. The parallel construction expands one level of
+ * that order at a time: the sweeps of a level run concurrently and only
+ * read the table, then the new subsets are added in the same order as the
+ * sequential construction would add them. Both give the same automaton.
+ */
+final class SubsetConstruction {
+
+	/**
+	 * Smallest level that is swept in parallel.
+	 */
+	static final int PARALLEL_THRESHOLD = 64;
+
+	/**
+	 * Number of subsets swept by one task.
+	 */
+	static final int CHUNK = 16;
+
+	// nondeterministic automaton, transitions on point index ranges
+	int size;
+	boolean[] accept;
+	int[] first; // transitions of state s are first[s] .. first[s + 1] - 1
+	int[] from;
+	int[] to; // exclusive
+	int[] dest;
+	char[] points;
+	int npoints;
+	int nedges;
+
+	// deterministic automaton
+	SubsetTable table = new SubsetTable();
+	ArrayList<State> dfa = new ArrayList<State>();
+	int dfa_transitions;
+	int max_states = CompilationContext.current().max_states;
+
+	/**
+	 * Numbers the states reachable from the given initial states and adds
+	 * the initial subset.
+	 */
+	SubsetConstruction(Set<State> initialset) {
+		ArrayList<State> nfa = new ArrayList<State>();
+		HashSet<State> visited = new HashSet<State>(initialset);
+		nfa.addAll(initialset);
+		for (int i = 0; i < nfa.size(); i++) {
+			State s = nfa.get(i);
+			s.number = i;
+			TransitionSet ts = s.transitions;
+			nedges += ts.size;
+			for (int j = 0; j < ts.size; j++)
+				if (visited.add(ts.to[j]))
+					nfa.add(ts.to[j]);
+		}
+		size = nfa.size();
+		// interval start points
+		points = new char[2 * nedges + 1];
+		points[npoints++] = Character.MIN_VALUE;
+		for (State s : nfa) {
+			TransitionSet ts = s.transitions;
+			for (int j = 0; j < ts.size; j++) {
+				points[npoints++] = ts.min[j];
+				if (ts.max[j] < Character.MAX_VALUE)
+					points[npoints++] = (char)(ts.max[j] + 1);
+			}
+		}
+		Arrays.sort(points, 0, npoints);
+		int k = 1;
+		for (int i = 1; i < npoints; i++)
+			if (points[i] != points[k - 1])
+				points[k++] = points[i];
+		npoints = k;
+		// transitions as point index ranges
+		accept = new boolean[size];
+		first = new int[size + 1];
+		from = new int[nedges];
+		to = new int[nedges];
+		dest = new int[nedges];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			State s = nfa.get(i);
+			accept[i] = s.accept;
+			first[i] = n;
+			TransitionSet ts = s.transitions;
+			for (int j = 0; j < ts.size; j++) {
+				from[n] = Arrays.binarySearch(points, 0, npoints, ts.min[j]);
+				if (ts.max[j] < Character.MAX_VALUE)
+					to[n] = Arrays.binarySearch(points, 0, npoints, (char)(ts.max[j] + 1));
+				else
+					to[n] = npoints;
+				dest[n] = ts.to[j].number;
+				n++;
+			}
+		}
+		first[size] = nedges;
+		int[] initial = new int[initialset.size()];
+		k = 0;
+		for (State s : initialset)
+			initial[k++] = s.number;
+		Arrays.sort(initial);
+		table.add(initial);
+		dfa.add(new State());
+	}
+
+	/**
+	 * Returns the initial deterministic state.
+	 */
+	State getInitialState() {
+		return dfa.get(0);
+	}
+
+	/**
+	 * Constructs all deterministic states.
+	 */
+	void run() {
+		Sweeper sweeper = new Sweeper();
+		Successors succ = new Successors();
+		for (int p = 0; p < dfa.size(); p++) {
+			sweeper.sweep(table.subsets[p], succ);
+			add(p, succ);
+		}
+	}
+
+	/**
+	 * Constructs all deterministic states, sweeping large levels in the
+	 * given pool.
+	 */
+	void run(ForkJoinPool pool) {
+		ConcurrentLinkedQueue<Sweeper> sweepers = new ConcurrentLinkedQueue<Sweeper>();
+		sweepers.add(new Sweeper());
+		int lo = 0;
+		while (lo < dfa.size()) {
+			int hi = dfa.size();
+			Successors[] level = new Successors[hi - lo];
+			if (hi - lo < PARALLEL_THRESHOLD) {
+				Sweeper sweeper = sweepers.peek();
+				for (int p = lo; p < hi; p++) {
+					level[p - lo] = new Successors();
+					sweeper.sweep(table.subsets[p], level[p - lo]);
+				}
+			} else
+				pool.invoke(new SweepTask(lo, hi, lo, level, sweepers));
+			for (int p = lo; p < hi; p++) {
+				add(p, level[p - lo]);
+				level[p - lo] = null;
+			}
+			lo = hi;
+		}
+	}
+
+	/**
+	 * Sets acceptance and adds the transitions of deterministic state
+	 * <code>p</code>, adding new subsets to the table.
+	 */
+	private void add(int p, Successors succ) {
+		State r = dfa.get(p);
+		for (int s : table.subsets[p])
+			if (accept[s]) {
+				r.accept = true;
+				break;
+			}
+		State last = null;
+		for (int i = 0; i < succ.size; i++) {
+			int q = succ.target[i];
+			if (q == -1) {
+				int[] subset = succ.subsets[i];
+				q = table.find(subset, subset.length);
+				if (q == -1) {
+					if (dfa.size() >= max_states)
+						throw new IllegalArgumentException("determinized automaton has more than " + max_states + " states");
+					q = table.add(subset);
+					dfa.add(new State());
+				}
+			}
+			State qs = dfa.get(q);
+			if (qs == last && r.transitions.max[r.transitions.size - 1] + 1 == succ.min[i])
+				r.transitions.max[r.transitions.size - 1] = succ.max[i];
+			else {
+				r.transitions.add(succ.min[i], succ.max[i], qs);
+				dfa_transitions++;
+			}
+			last = qs;
+		}
+	}
+
+	/**
+	 * Successors of a subset: char intervals in increasing order, each with
+	 * a known deterministic state or a subset not in the table.
+	 */
+	static final class Successors {
+
+		int size;
+		char[] min = new char[4];
+		char[] max = new char[4];
+		int[] target = new int[4]; // -1 if not in the table
+		int[][] subsets = new int[4][];
+
+		void add(char min, char max, int target, int[] subset) {
+			if (size == this.min.length) {
+				int n = 2 * size;
+				this.min = Arrays.copyOf(this.min, n);
+				this.max = Arrays.copyOf(this.max, n);
+				this.target = Arrays.copyOf(this.target, n);
+				subsets = Arrays.copyOf(subsets, n);
+			}
+			this.min[size] = min;
+			this.max[size] = max;
+			this.target[size] = target;
+			subsets[size++] = subset;
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++)
+				subsets[i] = null;
+			size = 0;
+		}
+	}
+
+	/**
+	 * Scratch space for sweeping, used by one thread at a time.
+	 */
+	final class Sweeper {
+
+		int[] count = new int[size]; // number of active transitions to each state
+		int[] mark = new int[size];
+		int generation;
+		int[] targets = new int[size];
+		int[] buffer = new int[size];
+		long[] starts = new long[0];
+		long[] ends = new long[0];
+
+		/**
+		 * Computes the successors of the given subset. Only reads the table.
+		 */
+		void sweep(int[] subset, Successors out) {
+			out.clear();
+			int nstarts = 0;
+			for (int s : subset)
+				nstarts += first[s + 1] - first[s];
+			if (nstarts == 0)
+				return;
+			if (starts.length < nstarts) {
+				starts = new long[Math.max(nstarts, 2 * starts.length)];
+				ends = new long[starts.length];
+			}
+			if (++generation == 0) {
+				Arrays.fill(mark, 0);
+				generation = 1;
+			}
+			// transitions sorted by start and by end, and their distinct destinations
+			int ntargets = 0;
+			nstarts = 0;
+			for (int s : subset)
+				for (int j = first[s]; j < first[s + 1]; j++) {
+					starts[nstarts] = ((long)from[j] << 32) | j;
+					ends[nstarts++] = ((long)to[j] << 32) | j;
+					if (mark[dest[j]] != generation) {
+						mark[dest[j]] = generation;
+						targets[ntargets++] = dest[j];
+					}
+				}
+			Arrays.sort(starts, 0, nstarts);
+			Arrays.sort(ends, 0, nstarts);
+			Arrays.sort(targets, 0, ntargets);
+			// the successor is constant between consecutive boundaries
+			int si = 0, ei = 0, active = 0;
+			while (si < nstarts || active > 0) {
+				int b = (int)(ends[ei] >>> 32);
+				if (si < nstarts && (int)(starts[si] >>> 32) < b)
+					b = (int)(starts[si] >>> 32);
+				for (; si < nstarts && (int)(starts[si] >>> 32) == b; si++) {
+					count[dest[(int)starts[si]]]++;
+					active++;
+				}
+				for (; ei < nstarts && (int)(ends[ei] >>> 32) == b; ei++) {
+					count[dest[(int)ends[ei]]]--;
+					active--;
+				}
+				if (active == 0)
+					continue;
+				int e = (int)(ends[ei] >>> 32);
+				if (si < nstarts && (int)(starts[si] >>> 32) < e)
+					e = (int)(starts[si] >>> 32);
+				int k = 0;
+				for (int i = 0; i < ntargets; i++)
+					if (count[targets[i]] > 0)
+						buffer[k++] = targets[i];
+				int q = table.find(buffer, k);
+				char max = e < npoints ? (char)(points[e] - 1) : Character.MAX_VALUE;
+				out.add(points[b], max, q, q == -1 ? Arrays.copyOf(buffer, k) : null);
+			}
+		}
+	}
+
+	/**
+	 * Sweeps the subsets of a range of deterministic states.
+	 */
+	@SuppressWarnings("serial")
+	final class SweepTask extends RecursiveAction {
+
+		int lo, hi, base;
+		Successors[] level;
+		ConcurrentLinkedQueue<Sweeper> sweepers;
+
+		SweepTask(int lo, int hi, int base, Successors[] level, ConcurrentLinkedQueue<Sweeper> sweepers) {
+			this.lo = lo;
+			this.hi = hi;
+			this.base = base;
+			this.level = level;
+			this.sweepers = sweepers;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > CHUNK) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SweepTask(lo, mid, base, level, sweepers), new SweepTask(mid, hi, base, level, sweepers));
+				return;
+			}
+			Sweeper sweeper = sweepers.poll();
+			if (sweeper == null)
+				sweeper = new Sweeper();
+			for (int p = lo; p < hi; p++) {
+				Successors succ = new Successors();
+				sweeper.sweep(table.subsets[p], succ);
+				level[p - base] = succ;
+			}
+			sweepers.add(sweeper);
+		}
+	}
+
+	/**
+	 * Open addressing hash table of subsets, numbered in order of insertion.
+	 */
+	static final class SubsetTable {
+
+		int[][] subsets = new int[16][];
+		int[] hashes = new int[16];
+		int count;
+		int[] slots = new int[32]; // subset number + 1, or 0 if free
+		int max_subset;
+		long elements;
+
+		private static int hash(int[] set, int size) {
+			int h = size;
+			for (int i = 0; i < size; i++)
+				h = 31 * h + set[i];
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * Returns the number of the given subset, or -1 if not present.
+		 */
+		int find(int[] set, int size) {
+			int h = hash(set, size);
+			int mask = slots.length - 1;
+			for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+				int p = slots[i] - 1;
+				if (hashes[p] == h && equals(subsets[p], set, size))
+					return p;
+			}
+			return -1;
+		}
+
+		private static boolean equals(int[] s, int[] set, int size) {
+			if (s.length != size)
+				return false;
+			for (int i = 0; i < size; i++)
+				if (s[i] != set[i])
+					return false;
+			return true;
+		}
+
+		/**
+		 * Adds the given subset, which must not be present, and returns its
+		 * number.
+		 */
+		int add(int[] set) {
+			if (count == subsets.length) {
+				subsets = Arrays.copyOf(subsets, 2 * count);
+				hashes = Arrays.copyOf(hashes, 2 * count);
+			}
+			if (2 * (count + 1) > slots.length) {
+				slots = new int[2 * slots.length];
+				for (int p = 0; p < count; p++)
+					insert(p);
+			}
+			subsets[count] = set;
+			hashes[count] = hash(set, set.length);
+			insert(count);
+			if (set.length > max_subset)
+				max_subset = set.length;
+			elements += set.length;
+			return count++;
+		}
+
+		private void insert(int p) {
+			int mask = slots.length - 1;
+			int i = hashes[p] & mask;
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = p + 1;
+		}
+	}
+}
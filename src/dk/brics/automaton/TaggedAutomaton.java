@@ -0,0 +1,336 @@
+package dk.brics.automaton;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tagged automaton for extracting capturing groups from a match.
+ * <p>
+ * The automaton is built from the syntax tree of a <code>RegExp</code>. Group
+ * boundaries become tag states that record the current offset, and every
+ * subexpression without groups is embedded as its minimal deterministic
+ * automaton. Groups inside intersections and complements (including the
+ * rewritten non-greedy repeats) cannot be tracked this way and are reported
+ * as not participating in the match.
+ * <p>
+ * The automaton is simulated in lock step (no backtracking) over a span that
+ * is already known to match. When several parses of the span exist, the one
+ * preferred by a backtracking matcher is chosen: greedy repeats and left
+ * alternatives first.
+ */
+final class TaggedAutomaton implements Serializable {
+
+	static final long serialVersionUID = 10001;
+
+	int groups; // number of capturing groups, not counting group 0
+	int initial;
+	int size;
+	int[] tag; // offset slot recorded when entering the state, or -1
+	int[] epsilon1; // epsilon successors, in priority order, or -1
+	int[] epsilon2;
+	boolean[] match;
+	int[] first; // transitions of state p are first[p] .. first[p + 1] - 1
+	char[] min;
+	char[] max;
+	int[] to;
+
+	private TaggedAutomaton() {}
+
+	/**
+	 * Constructs a tagged automaton for the given regular expression.
+	 * @param r regular expression with <code>r.groups</code> capturing groups
+	 * @param automata map from automaton identifiers to automata, may be null
+	 * @param automaton_provider provider of automata for named identifiers, may be null
+	 */
+	static TaggedAutomaton make(RegExp r, Map<String, Automaton> automata, AutomatonProvider automaton_provider) {
+		Builder b = new Builder(automata, automaton_provider);
+		int accept = b.newState();
+		b.match.set(accept, Boolean.TRUE);
+		TaggedAutomaton a = new TaggedAutomaton();
+		a.groups = r.groups;
+		a.initial = b.build(r, accept);
+		a.size = b.tag.size();
+		a.tag = new int[a.size];
+		a.epsilon1 = new int[a.size];
+		a.epsilon2 = new int[a.size];
+		a.match = new boolean[a.size];
+		a.first = new int[a.size + 1];
+		int n = 0;
+		for (int p = 0; p < a.size; p++)
+			n += b.transitions.get(p).size();
+		a.min = new char[n];
+		a.max = new char[n];
+		a.to = new int[n];
+		n = 0;
+		for (int p = 0; p < a.size; p++) {
+			a.tag[p] = b.tag.get(p);
+			a.epsilon1[p] = b.epsilon1.get(p);
+			a.epsilon2[p] = b.epsilon2.get(p);
+			a.match[p] = b.match.get(p);
+			a.first[p] = n;
+			for (int[] t : b.transitions.get(p)) {
+				a.min[n] = (char)t[0];
+				a.max[n] = (char)t[1];
+				a.to[n] = t[2];
+				n++;
+			}
+		}
+		a.first[a.size] = n;
+		return a;
+	}
+
+	/**
+	 * Returns the group offsets for the given span, which must be matched
+	 * in full.
+	 * <p>
+	 * Complexity: linear in the length of the span times the number of states.
+	 * @return array with start and end offset of group <code>i</code> at
+	 *         <code>2*i</code> and <code>2*i+1</code> (-1 if the group did
+	 *         not participate), or null if the span does not match
+	 */
+	int[] match(CharSequence s, int start, int end) {
+		int[] mark = new int[size];
+		int generation = 1;
+		Threads current = new Threads(size);
+		Threads next = new Threads(size);
+		int[] stack_states = new int[size + 1];
+		int[][] stack_slots = new int[size + 1][];
+		int[] slots = new int[2 * groups + 2];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = -1;
+		slots[0] = start;
+		slots[1] = end;
+		addThread(current, initial, slots, start, mark, generation, stack_states, stack_slots);
+		for (int i = start; i < end && current.size > 0; i++) {
+			char c = s.charAt(i);
+			generation++;
+			next.size = 0;
+			for (int k = 0; k < current.size; k++) {
+				int p = current.states[k];
+				for (int j = first[p]; j < first[p + 1]; j++)
+					if (min[j] <= c && c <= max[j])
+						addThread(next, to[j], current.slots[k], i + 1, mark, generation, stack_states, stack_slots);
+			}
+			Threads t = current;
+			current = next;
+			next = t;
+		}
+		for (int k = 0; k < current.size; k++)
+			if (match[current.states[k]])
+				return current.slots[k];
+		return null;
+	}
+
+	/**
+	 * Writes the tables of this automaton, see {@link BinaryTables}.
+	 */
+	void write(BinaryTables.Writer w) {
+		w.writeInt(groups);
+		w.writeInt(initial);
+		w.writeInt(size);
+		w.writeInts(tag);
+		w.writeInts(epsilon1);
+		w.writeInts(epsilon2);
+		w.writeBooleans(match);
+		w.writeInts(first);
+		w.writeChars(min);
+		w.writeChars(max);
+		w.writeInts(to);
+	}
+
+	/**
+	 * Reads tables written by {@link #write(BinaryTables.Writer)}.
+	 */
+	static TaggedAutomaton read(BinaryTables.Reader r) throws IOException {
+		TaggedAutomaton a = new TaggedAutomaton();
+		a.groups = r.readInt();
+		a.initial = r.readInt();
+		a.size = r.readInt();
+		a.tag = r.readInts();
+		a.epsilon1 = r.readInts();
+		a.epsilon2 = r.readInts();
+		a.match = r.readBooleans();
+		a.first = r.readInts();
+		a.min = r.readChars();
+		a.max = r.readChars();
+		a.to = r.readInts();
+		if (a.size < 0 || a.tag.length != a.size || a.epsilon1.length != a.size || a.epsilon2.length != a.size
+				|| a.match.length != a.size || a.first.length != a.size + 1 || a.min.length != a.to.length
+				|| a.max.length != a.to.length || a.first[a.size] != a.to.length)
+			throw new IOException("corrupt file");
+		return a;
+	}
+
+	/**
+	 * Adds the given state and everything reachable from it by epsilon moves
+	 * to the thread list, in priority order. Each state is visited at most
+	 * once per offset.
+	 */
+	private void addThread(Threads list, int p, int[] slots, int offset, int[] mark, int generation, int[] stack_states,
+			int[][] stack_slots) {
+		int top = 0;
+		stack_states[top] = p;
+		stack_slots[top++] = slots;
+		while (top > 0) {
+			p = stack_states[--top];
+			slots = stack_slots[top];
+			stack_slots[top] = null;
+			if (p == -1 || mark[p] == generation)
+				continue;
+			mark[p] = generation;
+			if (tag[p] != -1) {
+				slots = slots.clone();
+				slots[tag[p]] = offset;
+			}
+			if (match[p] || first[p] < first[p + 1]) {
+				list.states[list.size] = p;
+				list.slots[list.size++] = slots;
+			}
+			stack_states[top] = epsilon2[p];
+			stack_slots[top++] = slots;
+			stack_states[top] = epsilon1[p];
+			stack_slots[top++] = slots;
+		}
+	}
+
+	/**
+	 * Ordered list of live states, each with its own group offsets.
+	 */
+	private static class Threads {
+
+		int size;
+		int[] states;
+		int[][] slots;
+
+		Threads(int capacity) {
+			states = new int[capacity];
+			slots = new int[capacity][];
+		}
+	}
+
+	/**
+	 * Constructs the states from the syntax tree, back to front.
+	 */
+	private static class Builder {
+
+		Map<String, Automaton> automata;
+		AutomatonProvider automaton_provider;
+
+		List<Integer> tag = new ArrayList<Integer>();
+		List<Integer> epsilon1 = new ArrayList<Integer>();
+		List<Integer> epsilon2 = new ArrayList<Integer>();
+		List<Boolean> match = new ArrayList<Boolean>();
+		List<List<int[]>> transitions = new ArrayList<List<int[]>>();
+
+		Builder(Map<String, Automaton> automata, AutomatonProvider automaton_provider) {
+			this.automata = automata;
+			this.automaton_provider = automaton_provider;
+		}
+
+		int newState() {
+			tag.add(-1);
+			epsilon1.add(-1);
+			epsilon2.add(-1);
+			match.add(Boolean.FALSE);
+			transitions.add(new ArrayList<int[]>());
+			return tag.size() - 1;
+		}
+
+		int newTag(int slot, int next) {
+			int p = newState();
+			tag.set(p, slot);
+			epsilon1.set(p, next);
+			return p;
+		}
+
+		int newSplit(int first, int second) {
+			int p = newState();
+			epsilon1.set(p, first);
+			epsilon2.set(p, second);
+			return p;
+		}
+
+		/**
+		 * Adds states for the given expression, continuing with
+		 * <code>next</code> when it has been matched, and returns the entry
+		 * state.
+		 */
+		int build(RegExp r, int next) {
+			if (!r.hasGroups())
+				return embed(r.toAutomaton(automata, automaton_provider, true), next);
+			switch (r.kind) {
+			case REGEXP_GROUP: {
+				int p = build(r.exp1, newTag(2 * r.group + 1, next));
+				return newTag(2 * r.group, p);
+			}
+			case REGEXP_CONCATENATION:
+				return build(r.exp1, build(r.exp2, next));
+			case REGEXP_UNION: {
+				int p1 = build(r.exp1, next);
+				int p2 = build(r.exp2, next);
+				return newSplit(p1, p2);
+			}
+			case REGEXP_OPTIONAL:
+				return newSplit(build(r.exp1, next), next);
+			case REGEXP_REPEAT:
+				return loop(r.exp1, next);
+			case REGEXP_REPEAT_MIN: {
+				int p = loop(r.exp1, next);
+				for (int i = 0; i < r.min; i++)
+					p = build(r.exp1, p);
+				return p;
+			}
+			case REGEXP_REPEAT_MINMAX: {
+				if (r.min > r.max) // the empty language
+					return embed(r.toAutomaton(automata, automaton_provider, true), next);
+				int p = next;
+				for (int i = r.min; i < r.max; i++)
+					p = newSplit(build(r.exp1, p), next);
+				for (int i = 0; i < r.min; i++)
+					p = build(r.exp1, p);
+				return p;
+			}
+			default:
+				// intersection and complement: groups are not tracked
+				return embed(r.toAutomaton(automata, automaton_provider, true), next);
+			}
+		}
+
+		/**
+		 * Adds states for <code>r*</code>. The loop is entered and continued
+		 * from different states, so that one iteration matching the empty
+		 * string is still allowed (as in backtracking matchers) while the
+		 * states of <code>r</code> are visited once per offset.
+		 */
+		int loop(RegExp r, int next) {
+			int p = newSplit(-1, next);
+			int q = build(r, p);
+			epsilon1.set(p, q);
+			return newSplit(q, next);
+		}
+
+		/**
+		 * Adds a copy of the states of the given automaton, with epsilon
+		 * moves from its accept states to <code>next</code>.
+		 */
+		int embed(Automaton a, int next) {
+			Set<State> states = a.getStates();
+			Map<State, Integer> m = new HashMap<State, Integer>();
+			for (State s : states)
+				m.put(s, newState());
+			for (State s : states) {
+				int p = m.get(s);
+				if (s.accept)
+					epsilon1.set(p, next);
+				for (Transition t : s.getSortedTransitions(false))
+					transitions.get(p).add(new int[] {t.min, t.max, m.get(t.to)});
+			}
+			return m.get(a.initial);
+		}
+	}
+}
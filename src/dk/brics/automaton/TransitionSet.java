@@ -0,0 +1,226 @@
+package dk.brics.automaton;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of outgoing transitions of a {@link State}.
+ * <p>
+ * Transitions are stored in parallel arrays, sorted by (min, reverse max),
+ * instead of as <code>Transition</code> objects. Iteration creates
+ * <code>Transition</code> objects on the fly; operations in this package
+ * read the arrays directly. Reading never modifies the set, and a frozen
+ * set (see {@link Automaton#freeze()}) cannot be modified.
+ */
+final class TransitionSet extends AbstractSet<Transition> {
+
+	private static final char[] NO_CHARS = new char[0];
+	private static final State[] NO_STATES = new State[0];
+
+	int size;
+	char[] min = NO_CHARS;
+	char[] max = NO_CHARS;
+	State[] to = NO_STATES;
+	boolean overlapping; // if false, the intervals are disjoint
+	boolean frozen; // if true, the modifying methods throw IllegalStateException
+
+	/**
+	 * Throws <code>IllegalStateException</code> if this set is frozen.
+	 */
+	void checkMutable() {
+		if (frozen)
+			throw new IllegalStateException("automaton is frozen");
+	}
+
+	/**
+	 * Adds a transition. Returns false if it is already present.
+	 * <p>
+	 * Complexity: constant if added in sorted order, otherwise linear in
+	 * number of transitions.
+	 */
+	boolean add(char min, char max, State to) {
+		checkMutable();
+		int i = size;
+		if (size > 0 && compare(size - 1, min, max) >= 0) {
+			// find first transition sorted after the new one
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(mid, min, max) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			i = lo;
+			for (int j = i - 1; j >= 0 && compare(j, min, max) == 0; j--)
+				if (this.to[j] == to)
+					return false;
+		}
+		if (size == this.min.length) {
+			int n = size < 2 ? 2 : size * 2;
+			char[] min1 = new char[n];
+			char[] max1 = new char[n];
+			State[] to1 = new State[n];
+			System.arraycopy(this.min, 0, min1, 0, size);
+			System.arraycopy(this.max, 0, max1, 0, size);
+			System.arraycopy(this.to, 0, to1, 0, size);
+			this.min = min1;
+			this.max = max1;
+			this.to = to1;
+		}
+		if (i < size) {
+			System.arraycopy(this.min, i, this.min, i + 1, size - i);
+			System.arraycopy(this.max, i, this.max, i + 1, size - i);
+			System.arraycopy(this.to, i, this.to, i + 1, size - i);
+		}
+		this.min[i] = min;
+		this.max[i] = max;
+		this.to[i] = to;
+		size++;
+		if ((i > 0 && this.max[i - 1] >= min) || (i + 1 < size && max >= this.min[i + 1]))
+			overlapping = true;
+		return true;
+	}
+
+	/**
+	 * Adds all transitions of the given set.
+	 */
+	void addAll(TransitionSet ts) {
+		for (int i = 0; i < ts.size; i++)
+			add(ts.min[i], ts.max[i], ts.to[i]);
+	}
+
+	/**
+	 * Compares the transition at the given index with (min, reverse max).
+	 */
+	private int compare(int i, char min, char max) {
+		if (this.min[i] != min)
+			return this.min[i] - min;
+		return max - this.max[i];
+	}
+
+	/**
+	 * Returns the index of the given transition, or -1 if not present.
+	 */
+	private int indexOf(char min, char max, State to) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(mid, min, max) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		for (int i = lo; i < size && compare(i, min, max) == 0; i++)
+			if (this.to[i] == to)
+				return i;
+		return -1;
+	}
+
+	private void removeAt(int i) {
+		checkMutable();
+		size--;
+		System.arraycopy(min, i + 1, min, i, size - i);
+		System.arraycopy(max, i + 1, max, i, size - i);
+		System.arraycopy(to, i + 1, to, i, size - i);
+		to[size] = null;
+	}
+
+	/**
+	 * Returns the destination of a transition containing the given char, or
+	 * null if none. If the intervals overlap, the first such transition in
+	 * (min, reverse max) order is used.
+	 * <p>
+	 * Complexity: logarithmic in number of transitions if deterministic.
+	 */
+	State step(char c) {
+		if (overlapping) {
+			for (int i = 0; i < size && min[i] <= c; i++)
+				if (c <= max[i])
+					return to[i];
+			return null;
+		}
+		// find last transition with min <= c
+		int lo = 0, hi = size - 1, i = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (min[mid] <= c) {
+				i = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+		if (i >= 0 && c <= max[i])
+			return to[i];
+		return null;
+	}
+
+	@Override
+	public boolean add(Transition t) {
+		return add(t.min, t.max, t.to);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Transition))
+			return false;
+		Transition t = (Transition)o;
+		return indexOf(t.min, t.max, t.to) != -1;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof Transition))
+			return false;
+		Transition t = (Transition)o;
+		int i = indexOf(t.min, t.max, t.to);
+		if (i == -1)
+			return false;
+		removeAt(i);
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		checkMutable();
+		for (int i = 0; i < size; i++)
+			to[i] = null;
+		size = 0;
+		overlapping = false;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<Transition> iterator() {
+		return new Iterator<Transition>() {
+
+			int next;
+			boolean removable;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public Transition next() {
+				if (next >= size)
+					throw new NoSuchElementException();
+				removable = true;
+				Transition t = new Transition(min[next], max[next], to[next]);
+				next++;
+				return t;
+			}
+
+			public void remove() {
+				if (!removable)
+					throw new IllegalStateException();
+				removable = false;
+				removeAt(--next);
+			}
+		};
+	}
+}
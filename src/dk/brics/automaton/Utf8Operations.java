@@ -0,0 +1,153 @@
+package dk.brics.automaton;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conversion of automata over UTF-16 chars to automata over UTF-8 bytes.
+ * <p>
+ * A byte automaton is an ordinary <code>Automaton</code> whose transitions
+ * are labeled with the byte values 0-255 as chars. It runs on byte input
+ * through {@link ByteRunAutomaton}, or through any runtime reading a
+ * {@link ByteSequence}, so that the input need not be decoded.
+ */
+final public class Utf8Operations {
+
+	private Utf8Operations() {}
+
+	/**
+	 * Returns a minimal deterministic automaton over bytes that accepts the
+	 * UTF-8 encodings of the strings accepted by the given automaton.
+	 * <p>
+	 * A pair of transitions on a high surrogate followed by a low surrogate
+	 * becomes the 4-byte encoding of the supplementary code points it
+	 * stands for. Strings with unpaired surrogates have no UTF-8 encoding
+	 * and are dropped, and no overlong or otherwise invalid byte sequence is
+	 * accepted.
+	 * <p>
+	 * The language is still that of UTF-16 strings: "." stays one UTF-16
+	 * unit, so it matches no supplementary code point, and matches that
+	 * split a surrogate pair are not found in byte input.
+	 * <p>
+	 * Complexity: linear in the number of transitions, times the length of
+	 * the high surrogate intervals where the following low surrogate
+	 * interval is not complete, plus determinization and minimization.
+	 */
+	public static Automaton toUtf8(Automaton a) {
+		a = a.cloneExpandedIfRequired();
+		Set<State> states = a.getStates();
+		Map<State, State> m = new HashMap<State, State>();
+		for (State s : states) {
+			State p = new State();
+			p.accept = s.accept;
+			m.put(s, p);
+		}
+		for (State s : states) {
+			State from = m.get(s);
+			for (Transition t : s.getTransitions()) {
+				int min = t.min;
+				int max = t.max;
+				if (min < Character.MIN_SURROGATE)
+					addCodePoints(from, m.get(t.to), min, Math.min(max, Character.MIN_SURROGATE - 1));
+				if (max > Character.MAX_SURROGATE)
+					addCodePoints(from, m.get(t.to), Math.max(min, Character.MAX_SURROGATE + 1), max);
+				int hmin = Math.max(min, Character.MIN_HIGH_SURROGATE);
+				int hmax = Math.min(max, Character.MAX_HIGH_SURROGATE);
+				if (hmin <= hmax)
+					for (Transition u : t.to.getTransitions()) {
+						int lmin = Math.max(u.min, Character.MIN_LOW_SURROGATE);
+						int lmax = Math.min(u.max, Character.MAX_LOW_SURROGATE);
+						if (lmin > lmax)
+							continue;
+						State to = m.get(u.to);
+						if (lmin == Character.MIN_LOW_SURROGATE && lmax == Character.MAX_LOW_SURROGATE)
+							addCodePoints(from, to, Character.toCodePoint((char)hmin, (char)lmin), Character.toCodePoint((char)hmax, (char)lmax));
+						else
+							for (int h = hmin; h <= hmax; h++)
+								addCodePoints(from, to, Character.toCodePoint((char)h, (char)lmin), Character.toCodePoint((char)h, (char)lmax));
+					}
+			}
+		}
+		Automaton b = new Automaton();
+		b.initial = m.get(a.initial);
+		b.deterministic = false;
+		b.minimize();
+		return b;
+	}
+
+	/**
+	 * Adds paths from <code>from</code> to <code>to</code> reading the UTF-8
+	 * encodings of the code points from <code>min</code> to <code>max</code>,
+	 * which contain no surrogate.
+	 * <p>
+	 * The interval is split until all its code points have encodings of the
+	 * same length, and each byte of the encoding ranges over an interval
+	 * independently of the previous bytes. Each part is then one path.
+	 */
+	private static void addCodePoints(State from, State to, int min, int max) {
+		if (min > max)
+			return;
+		int[] limits = {0x7f, 0x7ff, 0xffff};
+		for (int limit : limits)
+			if (min <= limit && limit < max) {
+				addCodePoints(from, to, min, limit);
+				addCodePoints(from, to, limit + 1, max);
+				return;
+			}
+		int n = length(max);
+		for (int i = 1; i < n; i++) {
+			int mask = (1 << (6 * i)) - 1;
+			if ((min & ~mask) != (max & ~mask)) {
+				if ((min & mask) != 0) {
+					addCodePoints(from, to, min, min | mask);
+					addCodePoints(from, to, (min | mask) + 1, max);
+					return;
+				}
+				if ((max & mask) != mask) {
+					addCodePoints(from, to, min, (max & ~mask) - 1);
+					addCodePoints(from, to, max & ~mask, max);
+					return;
+				}
+			}
+		}
+		byte[] lo = encode(min, n);
+		byte[] hi = encode(max, n);
+		State s = from;
+		for (int i = 0; i < n; i++) {
+			State q = (i == n - 1) ? to : new State();
+			s.addTransition(new Transition((char)(lo[i] & 0xff), (char)(hi[i] & 0xff), q));
+			s = q;
+		}
+	}
+
+	/**
+	 * Returns the length of the UTF-8 encoding of the given code point.
+	 */
+	static int length(int c) {
+		if (c < 0x80)
+			return 1;
+		if (c < 0x800)
+			return 2;
+		if (c < 0x10000)
+			return 3;
+		return 4;
+	}
+
+	/**
+	 * Returns the UTF-8 encoding of the given code point, of the given length.
+	 */
+	private static byte[] encode(int c, int n) {
+		byte[] b = new byte[n];
+		if (n == 1) {
+			b[0] = (byte)c;
+			return b;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			b[i] = (byte)(0x80 | (c & 0x3f));
+			c >>= 6;
+		}
+		b[0] = (byte)((0xff << (8 - n)) | c);
+		return b;
+	}
+}